@@ -0,0 +1,97 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compare two JMH JSON result files (-rf json), e.g. a stored baseline and a fresh run:
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar bench.CompareResults baseline.json current.json [threshold %]
+ * </pre>
+ *
+ * Prints score and, when both runs used -prof gc, allocated bytes per operation, side by side. Exits with
+ * status 1 if any benchmark got slower or allocates more by more than the threshold (default 10 %).
+ */
+public final class CompareResults {
+
+    private static final Pattern BENCHMARK = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern PARAMS = Pattern.compile("\"params\"\\s*:\\s*\\{([^}]*)}");
+    private static final Pattern SCORE = Pattern.compile("\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([-+0-9.eE]+|\"NaN\")");
+    private static final Pattern UNIT = Pattern.compile("\"scoreUnit\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern ALLOC = Pattern.compile("\"gc\\.alloc\\.rate\\.norm\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([-+0-9.eE]+)");
+
+    private CompareResults() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: CompareResults <baseline.json> <current.json> [threshold %]");
+            System.exit(2);
+        }
+        Map<String, double[]> baseline = read(args[0]);
+        Map<String, double[]> current = read(args[1]);
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+
+        boolean regressed = false;
+        System.out.printf("%-60s %14s %14s %8s %12s %12s %8s%n", "benchmark", "baseline", "current", "time", "B/op base", "B/op now", "alloc");
+        for (Map.Entry<String, double[]> e : current.entrySet()) {
+            double[] now = e.getValue();
+            double[] base = baseline.get(e.getKey());
+            if (base == null) {
+                System.out.printf("%-60s %14s %14.3f%n", e.getKey(), "(new)", now[0]);
+                continue;
+            }
+            // every score here is time per operation, so larger is worse
+            double time = change(base[0], now[0]);
+            double alloc = change(base[1], now[1]);
+            boolean bad = time > threshold || alloc > threshold;
+            regressed |= bad;
+            System.out.printf("%-60s %14.3f %14.3f %+7.1f%% %12.0f %12.0f %+7.1f%%%s%n", e.getKey(), base[0], now[0], time,
+                    base[1], now[1], alloc, bad ? "  REGRESSION" : "");
+        }
+        System.exit(regressed ? 1 : 0);
+    }
+
+    private static double change(double base, double now) {
+        return Double.isNaN(base) || Double.isNaN(now) || base == 0 ? 0 : 100 * (now - base) / base;
+    }
+
+    /**
+     * @return benchmark name with its parameters -> {score, allocated bytes per op (NaN without -prof gc)}
+     */
+    private static Map<String, double[]> read(String file) throws IOException {
+        String json = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+        Map<String, double[]> results = new LinkedHashMap<>();
+        Matcher m = BENCHMARK.matcher(json);
+        int start = m.find() ? m.start() : -1;
+        while (start >= 0) {
+            String name = m.group(1);
+            int end = m.find() ? m.start() : json.length();
+            String entry = json.substring(start, end);
+            Matcher params = PARAMS.matcher(entry);
+            if (params.find()) {
+                name += " " + params.group(1).replaceAll("[\\s\"]", "");
+            }
+            Matcher unit = UNIT.matcher(entry);
+            if (unit.find()) {
+                name += " [" + unit.group(1) + "]";
+            }
+            results.put(name, new double[]{number(SCORE, entry), number(ALLOC, entry)});
+            start = end < json.length() ? end : -1;
+        }
+        return results;
+    }
+
+    private static double number(Pattern p, String entry) {
+        Matcher m = p.matcher(entry);
+        return m.find() && !m.group(1).startsWith("\"") ? Double.parseDouble(m.group(1)) : Double.NaN;
+    }
+
+}
@@ -0,0 +1,75 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+
+/**
+ * Bridge to the crypto classes. They live in the unnamed package, which named packages cannot import,
+ * and JMH refuses benchmarks in the unnamed package, so every entry point is bound here once as a
+ * MethodHandle. Constant handles are inlined by the JIT like direct calls.
+ */
+final class Crypto {
+
+    static final Class<?> SHAKE = load("SHAKE");
+    static final Class<?> POINT = load("Point");
+    static final Class<?> CRYPTOGRAM = load("Cryptogram");
+    static final Class<?> MAIN = load("Main");
+
+    static final MethodHandle KECCAKF = method(SHAKE, "sha3_keccakf", long[].class);
+    static final MethodHandle NEW_SHAKE = constructor(SHAKE);
+    static final MethodHandle INIT256 = method(SHAKE, "init256");
+    static final MethodHandle UPDATE = method(SHAKE, "update", byte[].class, int.class, int.class);
+    static final MethodHandle XOF = method(SHAKE, "xof");
+    static final MethodHandle OUT = method(SHAKE, "out", byte[].class, int.class);
+    static final MethodHandle KMACXOF256 = method(SHAKE, "KMACXOF256", byte[].class, byte[].class, int.class, byte[].class);
+
+    static final MethodHandle NEW_POINT = constructor(POINT);
+    static final MethodHandle DECOMPRESS = constructor(POINT, BigInteger.class, boolean.class);
+    static final MethodHandle SUM = method(POINT, "sum", POINT);
+    static final MethodHandle DOUBLING = method(POINT, "doubling");
+    static final MethodHandle MULTIPLY = method(POINT, "multiply", BigInteger.class);
+    static final MethodHandle MULTIPLY_G = method(POINT, "multiplyG", BigInteger.class);
+    static final MethodHandle GET_X = method(POINT, "getX");
+
+    static final MethodHandle ENCRYPT_PW = method(MAIN, "encrypt", byte[].class, byte[].class);
+    static final MethodHandle DECRYPT_PW = method(MAIN, "decryptSymmetricBytes", CRYPTOGRAM, byte[].class);
+    static final MethodHandle ENCRYPT_PK = method(MAIN, "encrypt", byte[].class, POINT);
+    static final MethodHandle DECRYPT_PK = method(MAIN, "decryptBytes", CRYPTOGRAM, byte[].class);
+    static final MethodHandle SIGN = method(MAIN, "sign", byte[].class, byte[].class);
+    static final MethodHandle VERIFY = method(MAIN, "verifySignature", byte[].class, byte[].class, POINT);
+
+    private Crypto() {
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle method(Class<?> owner, String name, Class<?>... params) {
+        try {
+            Method m = owner.getDeclaredMethod(name, params);
+            m.setAccessible(true);
+            return MethodHandles.lookup().unreflect(m);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> owner, Class<?>... params) {
+        try {
+            Constructor<?> c = owner.getDeclaredConstructor(params);
+            c.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(c);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package bench;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * E-521 group operations: projective sum and doubling, variable- and fixed-base scalar multiplication,
+ * and point decompression.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CurveBenchmark {
+
+    private Object acc;
+    private Object P;
+    private BigInteger k;
+    private BigInteger x;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        Random rnd = new Random(487);
+        k = new BigInteger(512, rnd);
+        P = Crypto.MULTIPLY_G.invoke(new BigInteger(512, rnd));
+        acc = Crypto.MULTIPLY_G.invoke(BigInteger.valueOf(3));
+        x = (BigInteger) Crypto.GET_X.invoke(P);
+    }
+
+    /**
+     * acc += P, in place; acc walks the group so the operands never become trivial.
+     */
+    @Benchmark
+    public Object sum() throws Throwable {
+        Crypto.SUM.invoke(acc, P);
+        return acc;
+    }
+
+    @Benchmark
+    public Object doubling() throws Throwable {
+        Crypto.DOUBLING.invoke(acc);
+        return acc;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object multiply() throws Throwable {
+        return Crypto.MULTIPLY.invoke(P, k);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object multiplyG() throws Throwable {
+        return Crypto.MULTIPLY_G.invoke(k);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object decompress() throws Throwable {
+        return Crypto.DECOMPRESS.invoke(x, false);
+    }
+
+}
@@ -0,0 +1,85 @@
+package bench;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The operations behind the command line, on in-memory messages: passphrase and public-key
+ * encryption and decryption, signing and verification.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EndToEndBenchmark {
+
+    @Param({"64", "65536"})
+    public int size;
+
+    private final byte[] pw = "benchmark passphrase".getBytes();
+    private byte[] message;
+    private Object publicKey;
+    private Object symmetric;
+    private Object publicKeyGram;
+    private Object signature;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        message = new byte[size];
+        new Random(487).nextBytes(message);
+        // the key pair of pw, derived as Main.generateKeyPair does
+        BigInteger s = new BigInteger((byte[]) Crypto.KMACXOF256.invoke(pw, new byte[0], 512, "K".getBytes()))
+                .multiply(BigInteger.valueOf(4)).abs();
+        publicKey = Crypto.MULTIPLY_G.invoke(s);
+        symmetric = Crypto.ENCRYPT_PW.invoke(message, pw);
+        publicKeyGram = Crypto.ENCRYPT_PK.invoke(message, publicKey);
+        signature = Crypto.SIGN.invoke(message, pw);
+    }
+
+    @Benchmark
+    public Object encrypt() throws Throwable {
+        return Crypto.ENCRYPT_PW.invoke(message, pw);
+    }
+
+    @Benchmark
+    public Object decryptSymmetric() throws Throwable {
+        return Crypto.DECRYPT_PW.invoke(symmetric, pw);
+    }
+
+    @Benchmark
+    public Object encryptPublicKey() throws Throwable {
+        return Crypto.ENCRYPT_PK.invoke(message, publicKey);
+    }
+
+    @Benchmark
+    public Object decryptPublicKey() throws Throwable {
+        return Crypto.DECRYPT_PK.invoke(publicKeyGram, pw);
+    }
+
+    @Benchmark
+    public Object sign() throws Throwable {
+        return Crypto.SIGN.invoke(message, pw);
+    }
+
+    @Benchmark
+    public Object verify() throws Throwable {
+        return Crypto.VERIFY.invoke(message, signature, publicKey);
+    }
+
+}
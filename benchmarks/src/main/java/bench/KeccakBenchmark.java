@@ -0,0 +1,62 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One Keccak-f[1600] permutation, and the latency of the one-shot KMACXOF256 on the small messages
+ * that key derivation and MACs of short messages feed it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeccakBenchmark {
+
+    @State(Scope.Thread)
+    public static class Lanes {
+        final long[] q = new long[25];
+    }
+
+    @State(Scope.Thread)
+    public static class Message {
+        @Param({"0", "16", "64", "256"})
+        public int size;
+
+        final byte[] key = "benchmark key".getBytes();
+        final byte[] S = "B".getBytes();
+        byte[] X;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            X = new byte[size];
+            new Random(487).nextBytes(X);
+        }
+    }
+
+    @Benchmark
+    public long[] keccakf(Lanes lanes) throws Throwable {
+        Crypto.KECCAKF.invoke(lanes.q);
+        return lanes.q;
+    }
+
+    @Benchmark
+    public Object kmacXof256(Message m) throws Throwable {
+        return Crypto.KMACXOF256.invoke(m.key, m.X, 512, m.S);
+    }
+
+}
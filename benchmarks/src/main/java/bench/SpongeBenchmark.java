@@ -0,0 +1,57 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Absorb/squeeze throughput of the SHAKE sponge across message sizes.
+ * Time is reported per call; divide size by it for bytes per second.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SpongeBenchmark {
+
+    @Param({"16", "1024", "65536", "1048576", "67108864"})
+    public int size;
+
+    private final byte[] digest = new byte[64];
+    private byte[] message;
+    private Object sponge;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        message = new byte[size];
+        new Random(487).nextBytes(message);
+        sponge = Crypto.NEW_SHAKE.invoke();
+    }
+
+    /**
+     * SHAKE256 over the whole message: init, update, pad, squeeze 64 bytes.
+     */
+    @Benchmark
+    public byte[] updateOut() throws Throwable {
+        Crypto.INIT256.invoke(sponge);
+        Crypto.UPDATE.invoke(sponge, message, 0, message.length);
+        Crypto.XOF.invoke(sponge);
+        Crypto.OUT.invoke(sponge, digest, digest.length);
+        return digest;
+    }
+
+}
@@ -0,0 +1,170 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Bulk mode of the command line: hash or encrypt every file of a directory tree or of a manifest
+ * (one path per line, relative to the manifest, blank lines and # comments skipped) in one JVM.
+ * <p>
+ * Files are handed to a work-stealing pool with one worker per core. The producer walks the input lazily
+ * and stops while 2 * cores files are in flight, so memory stays bounded however many files there are.
+ * Each file is streamed in constant memory and its result is printed as soon as it is done, so output
+ * lines come in completion order.
+ *
+ * @author Brandon Gaetaniello
+ * @author Arwain Karlin
+ */
+public class BulkRunner {
+
+    private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private final Semaphore inFlight = new Semaphore(2 * pool.getParallelism());
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final PrintStream out = System.out;
+
+    /**
+     * Print "digest  path" for each file, the digest being the same as that of -hash -f.
+     *
+     * @param input a directory or a manifest
+     */
+    public static void hash(Path input) throws IOException {
+        new BulkRunner().run(input, file -> true, (root, file) -> Main.hash(file.toFile()) + "  " + file);
+    }
+
+    /**
+     * Encrypt each file under the passphrase into a container named after it with the suffix .cgm,
+     * next to it or, if outDir is given, at the same relative path under outDir.
+     * Files that already end in .cgm are skipped, so containers written next to their inputs while the
+     * directory is being walked, or by an earlier run, are never encrypted again.
+     * An existing container is never overwritten: that file fails instead. With outDir, a manifest entry
+     * outside the manifest's directory has no relative path to keep, so it fails as well.
+     *
+     * @param input  a directory or a manifest
+     * @param outDir output directory, or null
+     * @param pw     passphrase
+     */
+    public static void encrypt(Path input, Path outDir, byte[] pw) throws IOException {
+        new BulkRunner().run(input, file -> !file.getFileName().toString().endsWith(".cgm"), (root, file) -> {
+            Path relative = root.relativize(file);
+            if (outDir != null && relative.startsWith("..")) {
+                throw new IllegalArgumentException("outside " + root + ", so it has no place under " + outDir);
+            }
+            Path target = outDir == null ? file : outDir.resolve(relative.toString());
+            target = target.resolveSibling(target.getFileName() + ".cgm");
+            if (target.getParent() != null) {
+                Files.createDirectories(target.getParent());
+            }
+            FileChannel created;
+            try {
+                created = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                throw new FileAlreadyExistsException(target.toString(), null, "container already exists");
+            }
+            boolean complete = false;
+            try (FileChannel out = created;
+                 FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                Main.encrypt(in, out, pw);
+                complete = true;
+            } finally {
+                if (!complete) {
+                    Files.deleteIfExists(target); // a partial container must not block the next run
+                }
+            }
+            return file + " -> " + target;
+        });
+    }
+
+    private interface Job {
+        /**
+         * @return the line to print for this file
+         */
+        String process(Path root, Path file) throws IOException;
+    }
+
+    private void run(Path input, Predicate<Path> accept, Job job) throws IOException {
+        Path root = Files.isDirectory(input) ? input : input.toAbsolutePath().getParent();
+        try {
+            produce(input, root, accept, job);
+        } finally {
+            inFlight.acquireUninterruptibly(2 * pool.getParallelism()); // wait for the last files
+            pool.shutdown();
+            out.flush();
+        }
+        System.err.println(done.get() + " files processed, " + failed.get() + " failed.");
+    }
+
+    private void produce(Path input, Path root, Predicate<Path> accept, Job job) throws IOException {
+        try (Stream<Path> files = (Files.isDirectory(input) ? Files.walk(input).filter(Files::isRegularFile) : manifest(input))
+                .filter(accept)) {
+            Iterator<Path> it = files.iterator();
+            while (hasNext(input, it)) {
+                Path file = it.next();
+                inFlight.acquireUninterruptibly(); // back-pressure: wait for a slot before reading further
+                pool.execute(() -> {
+                    try {
+                        String line = job.process(root, file);
+                        synchronized (out) {
+                            out.println(line);
+                        }
+                        done.incrementAndGet();
+                    } catch (IOException | RuntimeException e) {
+                        failed.incrementAndGet();
+                        synchronized (out) {
+                            System.err.println(file + ": " + e.getMessage());
+                        }
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Advance the walk or the manifest, which report read errors unchecked.
+     * Such an error ends the input but not the run: the files already handed out still finish.
+     */
+    private boolean hasNext(Path input, Iterator<Path> it) {
+        try {
+            return it.hasNext();
+        } catch (UncheckedIOException e) {
+            failed.incrementAndGet();
+            synchronized (out) {
+                System.err.println(input + ": " + e.getCause());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the paths listed in the manifest, resolved against its directory
+     */
+    private static Stream<Path> manifest(Path manifest) throws IOException {
+        Path dir = manifest.toAbsolutePath().getParent();
+        BufferedReader reader = Files.newBufferedReader(manifest);
+        return reader.lines()
+                .map(String::trim)
+                .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                .map(line -> dir.resolve(line).normalize())
+                .onClose(() -> {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        // nothing left to read
+                    }
+                });
+    }
+
+}
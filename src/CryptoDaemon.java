@@ -0,0 +1,302 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Long-running crypto service, so that the sponge and curve code stay JIT-compiled across requests.
+ * It listens on loopback TCP or, on JDK 16 and later, on a Unix domain socket.
+ * <p>
+ * Every frame is a 4-byte big-endian length followed by that many bytes:
+ *
+ * <pre>
+ * request:  id (4) | op (1)     | fields
+ * response: id (4) | status (1) | fields
+ * </pre>
+ *
+ * and every field is a 4-byte length followed by its bytes. Requests on one connection are handled
+ * concurrently, so a client may pipeline them; responses carry the id of their request and may come
+ * back out of order. A failed request gets status ERROR and a single UTF-8 message field.
+ * A connection stops being read while MAX_IN_FLIGHT of its requests, or MAX_IN_FLIGHT_BYTES of their frames,
+ * are pending, so a pipelining client must keep reading responses while it writes.
+ *
+ * <pre>
+ * HASH    m                    -> digest
+ * ENC     m, pw                -> cryptogram container
+ * KENC    m, public key        -> cryptogram container
+ * DEC     container, pw        -> m
+ * KDEC    container, pw        -> m
+ * SIGN    m, pw                -> signature
+ * VERIFY  m, signature, key    -> 1 byte (1 iff valid)
+ * STATS                        -> UTF-8 report of the Metrics counters and latencies
+ * </pre>
+ *
+ * @author Brandon Gaetaniello
+ * @author Arwain Karlin
+ */
+public class CryptoDaemon {
+
+    public static final byte HASH = 1;
+    public static final byte ENC = 2;
+    public static final byte KENC = 3;
+    public static final byte DEC = 4;
+    public static final byte KDEC = 5;
+    public static final byte SIGN = 6;
+    public static final byte VERIFY = 7;
+    public static final byte STATS = 8;
+
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+
+    public static final int DEFAULT_PORT = 4870;
+    private static final int MAX_FRAME = 1 << 26; // larger requests should go through the streaming file paths
+    private static final int MAX_IN_FLIGHT = 64; // requests one connection may have outstanding before reads pause
+    private static final int MAX_IN_FLIGHT_BYTES = 2 * MAX_FRAME; // request bytes one connection may hold before reads pause
+
+    private final ServerSocketChannel server;
+    private final ExecutorService workers = newWorkers();
+
+    private CryptoDaemon(ServerSocketChannel server) {
+        this.server = server;
+    }
+
+    /**
+     * Serve on a loopback TCP port until the process is killed.
+     */
+    public static void serveTcp(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        new CryptoDaemon(server).run();
+    }
+
+    /**
+     * Serve on a Unix domain socket until the process is killed.
+     * Unix domain channels exist from JDK 16 on, so they are looked up reflectively.
+     * A socket left at path by an earlier run is replaced; any other kind of file is not touched.
+     *
+     * @throws UnsupportedOperationException on an older JDK
+     * @throws FileAlreadyExistsException if path exists and is not a socket
+     */
+    public static void serveUnix(String path) throws IOException {
+        Path socket = Paths.get(path);
+        ServerSocketChannel server;
+        SocketAddress address;
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", Path.class).invoke(null, socket);
+            server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Unix domain sockets need JDK 16 or later", e);
+        }
+        try {
+            if (Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) {
+                // sockets, like pipes and devices, are neither regular files, directories nor links
+                if (!Files.readAttributes(socket, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()) {
+                    throw new FileAlreadyExistsException(path, null, "not a socket");
+                }
+                Files.delete(socket);
+            }
+            server.bind(address);
+        } catch (IOException | RuntimeException e) {
+            server.close();
+            throw e;
+        }
+        socket.toFile().deleteOnExit();
+        new CryptoDaemon(server).run();
+    }
+
+    /**
+     * One virtual thread per task where the JDK has them (21 and later), otherwise a cached pool of daemon threads.
+     */
+    private static ExecutorService newWorkers() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private void run() throws IOException {
+        while (true) {
+            SocketChannel client = server.accept();
+            workers.execute(() -> serve(client));
+        }
+    }
+
+    /**
+     * Read the frames of one connection and hand each one to its own worker.
+     */
+    private void serve(SocketChannel client) {
+        Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        Semaphore inFlightBytes = new Semaphore(MAX_IN_FLIGHT_BYTES);
+        ReentrantLock writeLock = new ReentrantLock(); // a lock rather than synchronized, so virtual threads do not pin
+        try (SocketChannel c = client) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            while (readFrame(c, length)) {
+                int n = length.getInt(0);
+                if (n < 5 || n > MAX_FRAME) {
+                    return; // not speaking the protocol
+                }
+                inFlight.acquire();
+                inFlightBytes.acquire(n); // before the frame is allocated, so the budget covers it
+                ByteBuffer frame = ByteBuffer.allocate(n);
+                readFully(c, frame);
+                frame.flip();
+                workers.execute(() -> {
+                    try {
+                        respond(c, writeLock, frame);
+                    } finally {
+                        inFlightBytes.release(n);
+                        inFlight.release();
+                    }
+                });
+            }
+            inFlight.acquire(MAX_IN_FLIGHT); // let outstanding responses go out before closing
+        } catch (IOException | InterruptedException e) {
+            // the client went away
+        }
+    }
+
+    private static void respond(SocketChannel c, ReentrantLock writeLock, ByteBuffer frame) {
+        int id = frame.getInt();
+        byte op = frame.get();
+        byte status = OK;
+        byte[][] result;
+        try {
+            result = handle(op, frame);
+        } catch (RuntimeException e) {
+            status = ERROR;
+            result = new byte[][]{String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8)};
+        }
+        int n = 4 + 1;
+        for (byte[] f : result) {
+            n += 4 + f.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(4 + n);
+        out.putInt(n).putInt(id).put(status);
+        for (byte[] f : result) {
+            out.putInt(f.length).put(f);
+        }
+        out.flip();
+        writeLock.lock();
+        try {
+            while (out.hasRemaining()) {
+                c.write(out);
+            }
+        } catch (IOException e) {
+            // the client went away; its reader will notice
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static byte[][] handle(byte op, ByteBuffer frame) {
+        switch (op) {
+            case HASH:
+                return new byte[][]{Main.digest(field(frame))};
+            case ENC: {
+                byte[] m = field(frame);
+                return new byte[][]{Main.encrypt(m, field(frame)).serialize().array()};
+            }
+            case KENC: {
+                byte[] m = field(frame);
+                return new byte[][]{Main.encrypt(m, Point.fromBytes(field(frame))).serialize().array()};
+            }
+            case DEC:
+            case KDEC: {
+                Cryptogram gram = Cryptogram.deserialize(ByteBuffer.wrap(field(frame)));
+                byte[] pw = field(frame);
+                if (gram.getMode() != (op == DEC ? Cryptogram.MODE_SYMMETRIC : Cryptogram.MODE_PUBLIC_KEY)) {
+                    throw new IllegalArgumentException("wrong cryptogram mode for this operation");
+                }
+                byte[] m = op == DEC ? Main.decryptSymmetricBytes(gram, pw) : Main.decryptBytes(gram, pw);
+                if (m == null) {
+                    throw new IllegalArgumentException("MAC verification failed");
+                }
+                return new byte[][]{m};
+            }
+            case SIGN: {
+                byte[] m = field(frame);
+                return new byte[][]{Main.sign(m, field(frame))};
+            }
+            case VERIFY: {
+                byte[] m = field(frame);
+                byte[] sig = field(frame);
+                boolean valid = Main.verifySignature(m, sig, Point.fromBytes(field(frame)));
+                return new byte[][]{{(byte) (valid ? 1 : 0)}};
+            }
+            case STATS:
+                String report = Metrics.ENABLED ? Metrics.report() : "metrics are off; start with -Dcrypto.metrics=true\n";
+                return new byte[][]{report.getBytes(StandardCharsets.UTF_8)};
+            default:
+                throw new IllegalArgumentException("unknown operation " + op);
+        }
+    }
+
+    private static byte[] field(ByteBuffer frame) {
+        if (frame.remaining() < 4) {
+            throw new IllegalArgumentException("missing field");
+        }
+        int n = frame.getInt();
+        if (n < 0 || n > frame.remaining()) {
+            throw new IllegalArgumentException("malformed field");
+        }
+        byte[] f = new byte[n];
+        frame.get(f);
+        return f;
+    }
+
+    /**
+     * Read a frame length; false on a clean end of stream between frames.
+     */
+    private static boolean readFrame(SocketChannel c, ByteBuffer length) throws IOException {
+        length.clear();
+        if (c.read(length) < 0) {
+            return false;
+        }
+        readFully(c, length);
+        return true;
+    }
+
+    private static void readFully(SocketChannel c, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (c.read(dst) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+}
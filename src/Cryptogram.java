@@ -1,10 +1,35 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
+ * A symmetric (IV) or public-key (Z point) cryptogram, and its single-file container:
+ *
+ * <pre>
+ * magic "CGRM" | version (1) | mode (1) | header field length (2) | ciphertext length (8) | MAC length (2)
+ * | header field (IV, or the compressed Z point) | ciphertext | MAC
+ * </pre>
+ *
+ * All integers are big-endian. Every length is in the fixed part of the header, so the container can be
+ * written and read incrementally: header, then the ciphertext in chunks, then the MAC.
+ * <p>
+ * A segmented cryptogram (see SegmentedCryptogram) has the header field IV || segment size (4), and
+ * in place of the MAC an index block of one tag per segment; its header's MAC length is the length of one tag.
+ *
  * @author Brandon Gaetaniello
  * @author Arwain Karlin
  */
 public class Cryptogram {
 
+    public static final byte VERSION = 1;
+    public static final byte MODE_SYMMETRIC = 0;
+    public static final byte MODE_PUBLIC_KEY = 1;
+    public static final byte MODE_SEGMENTED = 2;
+    private static final int MAGIC = 0x4347524D; // "CGRM"
+    private static final int FIXED_HEADER_LENGTH = 4 + 1 + 1 + 2 + 8 + 2;
+
     public byte[] getIV() {
         return IV;
     }
@@ -14,17 +39,50 @@ public class Cryptogram {
     }
 
     public byte[] getCipherText() {
+        if (cipherText == null && cipherView != null) {
+            cipherText = new byte[cipherView.remaining()];
+            cipherView.duplicate().get(cipherText);
+        }
         return cipherText;
     }
 
+    /**
+     * @return the ciphertext as a read-only buffer; after deserialize this is a view of the source buffer
+     */
+    public ByteBuffer getCipherTextBuffer() {
+        return (cipherView != null ? cipherView.duplicate() : ByteBuffer.wrap(cipherText)).asReadOnlyBuffer();
+    }
+
     public byte[] getMAC() {
         return MAC;
     }
 
+    public byte getMode() {
+        return point != null ? MODE_PUBLIC_KEY : segmented ? MODE_SEGMENTED : MODE_SYMMETRIC;
+    }
+
+    /**
+     * @return the ciphertext length recorded in the header, which is also known when only the header has been read
+     */
+    public long getCipherLength() {
+        return cipherText != null ? cipherText.length : cipherView != null ? cipherView.remaining() : cipherLength;
+    }
+
+    /**
+     * @return the MAC length recorded in the header
+     */
+    public int getMACLength() {
+        return MAC != null ? MAC.length : macLength;
+    }
+
     private byte[] IV;
     private byte[] cipherText;
     private byte[] MAC;
     private Point point;
+    private ByteBuffer cipherView; // set by deserialize: the ciphertext inside the source buffer, not copied
+    private long cipherLength; // set by readHeader while the ciphertext is still in the channel
+    private int macLength;
+    private boolean segmented; // IV holds the segmented header field
 
     public Cryptogram(byte[] z, byte[] c, byte[] t) {
         IV = z;
@@ -38,4 +96,161 @@ public class Cryptogram {
         MAC = t;
     }
 
+    /**
+     * @param field IV || segment size
+     * @return the header of a segmented cryptogram
+     */
+    static Cryptogram segmented(byte[] field) {
+        Cryptogram gram = new Cryptogram(field, null, null);
+        gram.segmented = true;
+        return gram;
+    }
+
+    /**
+     * @return the length of the container header (fixed part and IV or Z)
+     */
+    public int headerLength() {
+        return FIXED_HEADER_LENGTH + headerField().length;
+    }
+
+    /**
+     * @return the length of the whole container
+     */
+    public long serializedLength() {
+        return headerLength() + getCipherLength() + getMACLength();
+    }
+
+    /**
+     * Write the container header, for a body of cipherLength ciphertext bytes and a macLength-byte MAC to follow.
+     *
+     * @param dst receives headerLength() bytes
+     */
+    public void writeHeader(ByteBuffer dst, long cipherLength, int macLength) {
+        byte[] field = headerField();
+        dst.putInt(MAGIC).put(VERSION).put(getMode()).putShort((short) field.length)
+                .putLong(cipherLength).putShort((short) macLength).put(field);
+    }
+
+    /**
+     * Write the header to a channel; the caller then streams the ciphertext and the MAC.
+     */
+    public void writeHeader(WritableByteChannel out, long cipherLength, int macLength) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(headerLength());
+        writeHeader(header, cipherLength, macLength);
+        header.flip();
+        while (header.hasRemaining()) {
+            out.write(header);
+        }
+    }
+
+    /**
+     * Write the whole container.
+     *
+     * @param dst receives serializedLength() bytes
+     */
+    public void serialize(ByteBuffer dst) {
+        writeHeader(dst, getCipherLength(), getMACLength());
+        dst.put(getCipherTextBuffer()).put(MAC);
+    }
+
+    /**
+     * @return the whole container in a new heap buffer, ready to be read
+     */
+    public ByteBuffer serialize() {
+        ByteBuffer dst = ByteBuffer.allocate(Math.toIntExact(serializedLength()));
+        serialize(dst);
+        dst.flip();
+        return dst;
+    }
+
+    /**
+     * Read a whole container. The ciphertext is not copied: it stays a view of src
+     * until getCipherText() is called.
+     *
+     * @param src positioned at the container; advanced past it
+     * @return the cryptogram
+     * @throws IllegalArgumentException if src does not hold a well-formed container
+     */
+    public static Cryptogram deserialize(ByteBuffer src) {
+        Cryptogram gram = readHeader(src);
+        if (gram.segmented) {
+            throw new IllegalArgumentException("segmented cryptograms are read through SegmentedCryptogram");
+        }
+        if (src.remaining() < gram.cipherLength + gram.macLength) {
+            throw new IllegalArgumentException("truncated cryptogram");
+        }
+        int end = src.position() + (int) gram.cipherLength;
+        ByteBuffer view = src.duplicate();
+        view.limit(end);
+        gram.cipherView = view.slice();
+        src.position(end);
+        gram.MAC = new byte[gram.macLength];
+        src.get(gram.MAC);
+        return gram;
+    }
+
+    /**
+     * Read a container header; the ciphertext and MAC lengths are then available
+     * through getCipherLength() and getMACLength().
+     *
+     * @param src positioned at the container; advanced past the header
+     * @return a cryptogram with its IV or Z, but no ciphertext or MAC yet
+     * @throws IllegalArgumentException if the header is malformed
+     */
+    public static Cryptogram readHeader(ByteBuffer src) {
+        if (src.remaining() < FIXED_HEADER_LENGTH || src.getInt() != MAGIC) {
+            throw new IllegalArgumentException("not a cryptogram");
+        }
+        if (src.get() != VERSION) {
+            throw new IllegalArgumentException("unsupported cryptogram version");
+        }
+        byte mode = src.get();
+        byte[] field = new byte[src.getShort() & 0xFFFF];
+        long cipherLength = src.getLong();
+        int macLength = src.getShort() & 0xFFFF;
+        if (cipherLength < 0 || src.remaining() < field.length) {
+            throw new IllegalArgumentException("malformed cryptogram header");
+        }
+        src.get(field);
+        Cryptogram gram;
+        if (mode == MODE_SYMMETRIC) {
+            gram = new Cryptogram(field, null, null);
+        } else if (mode == MODE_PUBLIC_KEY) {
+            gram = new Cryptogram(Point.fromBytes(field), null, null);
+        } else if (mode == MODE_SEGMENTED) {
+            gram = segmented(field);
+        } else {
+            throw new IllegalArgumentException("unknown cryptogram mode " + mode);
+        }
+        gram.cipherLength = cipherLength;
+        gram.macLength = macLength;
+        return gram;
+    }
+
+    /**
+     * Read a container header from a channel, leaving the channel at the first ciphertext byte.
+     */
+    public static Cryptogram readHeader(ReadableByteChannel in) throws IOException {
+        ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER_LENGTH);
+        readFully(in, fixed);
+        ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_LENGTH + (fixed.getShort(6) & 0xFFFF));
+        fixed.flip();
+        header.put(fixed);
+        readFully(in, header);
+        header.flip();
+        return readHeader(header);
+    }
+
+    private byte[] headerField() {
+        return point != null ? point.toBytes() : IV;
+    }
+
+    private static void readFully(ReadableByteChannel in, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (in.read(dst) < 0) {
+                throw new EOFException("truncated cryptogram");
+            }
+        }
+    }
+
 }
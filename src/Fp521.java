@@ -0,0 +1,368 @@
+import java.math.BigInteger;
+
+/**
+ * Mutable element of the prime field GF(2^521 - 1), held as nine 58-bit limbs
+ * (the top limb has 57 bits), with x = sum of l[i] * 2^(58 * i).
+ * Reduction exploits the Mersenne form of the modulus: 2^521 = 1 (mod p).
+ * Every operation writes its result into this element and allocates nothing; results may alias the operands.
+ */
+public final class Fp521 {
+    private static final long M58 = (1L << 58) - 1;
+    private static final long M57 = (1L << 57) - 1;
+    private static final long TWO_P_LOW = (1L << 59) - 2; // limbs 0..7 of 2p
+    private static final long TWO_P_TOP = (1L << 58) - 2; // limb 8 of 2p
+    private static final BigInteger P = BigInteger.ONE.shiftLeft(521).subtract(BigInteger.ONE);
+
+    private final long[] l = new long[9];
+
+    public Fp521() {
+    }
+
+    public Fp521(Fp521 a) {
+        set(a);
+    }
+
+    /**
+     * Convert an integer (reduced mod p first) to a field element.
+     *
+     * @param v any integer
+     * @return v mod p as a field element
+     */
+    public static Fp521 valueOf(BigInteger v) {
+        BigInteger r = v.mod(P);
+        Fp521 e = new Fp521();
+        for (int i = 0; i < 9; i++) {
+            e.l[i] = r.shiftRight(58 * i).longValue() & M58;
+        }
+        return e;
+    }
+
+    /**
+     * Convert this element to its canonical integer representative in [0, p).
+     *
+     * @return this element as an integer
+     */
+    public BigInteger toBigInteger() {
+        long[] c = canonical();
+        BigInteger r = BigInteger.ZERO;
+        for (int i = 8; i >= 0; i--) {
+            r = r.shiftLeft(58).or(BigInteger.valueOf(c[i]));
+        }
+        return r;
+    }
+
+    public Fp521 set(Fp521 a) {
+        System.arraycopy(a.l, 0, l, 0, 9);
+        return this;
+    }
+
+    /**
+     * this = a + b
+     */
+    public Fp521 add(Fp521 a, Fp521 b) {
+        long[] x = a.l, y = b.l;
+        carry(x[0] + y[0], x[1] + y[1], x[2] + y[2], x[3] + y[3], x[4] + y[4],
+                x[5] + y[5], x[6] + y[6], x[7] + y[7], x[8] + y[8]);
+        return this;
+    }
+
+    /**
+     * this = a - b, computed as a + 2p - b so that no limb goes negative
+     */
+    public Fp521 sub(Fp521 a, Fp521 b) {
+        long[] x = a.l, y = b.l;
+        carry(x[0] + TWO_P_LOW - y[0], x[1] + TWO_P_LOW - y[1], x[2] + TWO_P_LOW - y[2],
+                x[3] + TWO_P_LOW - y[3], x[4] + TWO_P_LOW - y[4], x[5] + TWO_P_LOW - y[5],
+                x[6] + TWO_P_LOW - y[6], x[7] + TWO_P_LOW - y[7], x[8] + TWO_P_TOP - y[8]);
+        return this;
+    }
+
+    /**
+     * this = a * b
+     * Each 116-bit limb product is split at bit 58 into a low part for its own column and a high part for the next.
+     */
+    public Fp521 mul(Fp521 a, Fp521 b) {
+        long x0 = a.l[0], x1 = a.l[1], x2 = a.l[2], x3 = a.l[3], x4 = a.l[4], x5 = a.l[5], x6 = a.l[6], x7 = a.l[7], x8 = a.l[8];
+        long y0 = b.l[0], y1 = b.l[1], y2 = b.l[2], y3 = b.l[3], y4 = b.l[4], y5 = b.l[5], y6 = b.l[6], y7 = b.l[7], y8 = b.l[8];
+        long c0 = 0, c1 = 0, c2 = 0, c3 = 0, c4 = 0, c5 = 0, c6 = 0, c7 = 0, c8 = 0, c9 = 0, m;
+        // products landing at 2^(58 * (i + j)) with i + j >= 9 are folded down by 2^522 = 2 (mod p)
+        long z1 = y1 << 1, z2 = y2 << 1, z3 = y3 << 1, z4 = y4 << 1, z5 = y5 << 1, z6 = y6 << 1, z7 = y7 << 1, z8 = y8 << 1;
+        m = x0 * y0; c0 += m & M58; c1 += (Math.multiplyHigh(x0, y0) << 6) | (m >>> 58);
+        m = x0 * y1; c1 += m & M58; c2 += (Math.multiplyHigh(x0, y1) << 6) | (m >>> 58);
+        m = x0 * y2; c2 += m & M58; c3 += (Math.multiplyHigh(x0, y2) << 6) | (m >>> 58);
+        m = x0 * y3; c3 += m & M58; c4 += (Math.multiplyHigh(x0, y3) << 6) | (m >>> 58);
+        m = x0 * y4; c4 += m & M58; c5 += (Math.multiplyHigh(x0, y4) << 6) | (m >>> 58);
+        m = x0 * y5; c5 += m & M58; c6 += (Math.multiplyHigh(x0, y5) << 6) | (m >>> 58);
+        m = x0 * y6; c6 += m & M58; c7 += (Math.multiplyHigh(x0, y6) << 6) | (m >>> 58);
+        m = x0 * y7; c7 += m & M58; c8 += (Math.multiplyHigh(x0, y7) << 6) | (m >>> 58);
+        m = x0 * y8; c8 += m & M58; c9 += (Math.multiplyHigh(x0, y8) << 6) | (m >>> 58);
+        m = x1 * y0; c1 += m & M58; c2 += (Math.multiplyHigh(x1, y0) << 6) | (m >>> 58);
+        m = x1 * y1; c2 += m & M58; c3 += (Math.multiplyHigh(x1, y1) << 6) | (m >>> 58);
+        m = x1 * y2; c3 += m & M58; c4 += (Math.multiplyHigh(x1, y2) << 6) | (m >>> 58);
+        m = x1 * y3; c4 += m & M58; c5 += (Math.multiplyHigh(x1, y3) << 6) | (m >>> 58);
+        m = x1 * y4; c5 += m & M58; c6 += (Math.multiplyHigh(x1, y4) << 6) | (m >>> 58);
+        m = x1 * y5; c6 += m & M58; c7 += (Math.multiplyHigh(x1, y5) << 6) | (m >>> 58);
+        m = x1 * y6; c7 += m & M58; c8 += (Math.multiplyHigh(x1, y6) << 6) | (m >>> 58);
+        m = x1 * y7; c8 += m & M58; c9 += (Math.multiplyHigh(x1, y7) << 6) | (m >>> 58);
+        m = x1 * z8; c0 += m & M58; c1 += (Math.multiplyHigh(x1, z8) << 6) | (m >>> 58);
+        m = x2 * y0; c2 += m & M58; c3 += (Math.multiplyHigh(x2, y0) << 6) | (m >>> 58);
+        m = x2 * y1; c3 += m & M58; c4 += (Math.multiplyHigh(x2, y1) << 6) | (m >>> 58);
+        m = x2 * y2; c4 += m & M58; c5 += (Math.multiplyHigh(x2, y2) << 6) | (m >>> 58);
+        m = x2 * y3; c5 += m & M58; c6 += (Math.multiplyHigh(x2, y3) << 6) | (m >>> 58);
+        m = x2 * y4; c6 += m & M58; c7 += (Math.multiplyHigh(x2, y4) << 6) | (m >>> 58);
+        m = x2 * y5; c7 += m & M58; c8 += (Math.multiplyHigh(x2, y5) << 6) | (m >>> 58);
+        m = x2 * y6; c8 += m & M58; c9 += (Math.multiplyHigh(x2, y6) << 6) | (m >>> 58);
+        m = x2 * z7; c0 += m & M58; c1 += (Math.multiplyHigh(x2, z7) << 6) | (m >>> 58);
+        m = x2 * z8; c1 += m & M58; c2 += (Math.multiplyHigh(x2, z8) << 6) | (m >>> 58);
+        m = x3 * y0; c3 += m & M58; c4 += (Math.multiplyHigh(x3, y0) << 6) | (m >>> 58);
+        m = x3 * y1; c4 += m & M58; c5 += (Math.multiplyHigh(x3, y1) << 6) | (m >>> 58);
+        m = x3 * y2; c5 += m & M58; c6 += (Math.multiplyHigh(x3, y2) << 6) | (m >>> 58);
+        m = x3 * y3; c6 += m & M58; c7 += (Math.multiplyHigh(x3, y3) << 6) | (m >>> 58);
+        m = x3 * y4; c7 += m & M58; c8 += (Math.multiplyHigh(x3, y4) << 6) | (m >>> 58);
+        m = x3 * y5; c8 += m & M58; c9 += (Math.multiplyHigh(x3, y5) << 6) | (m >>> 58);
+        m = x3 * z6; c0 += m & M58; c1 += (Math.multiplyHigh(x3, z6) << 6) | (m >>> 58);
+        m = x3 * z7; c1 += m & M58; c2 += (Math.multiplyHigh(x3, z7) << 6) | (m >>> 58);
+        m = x3 * z8; c2 += m & M58; c3 += (Math.multiplyHigh(x3, z8) << 6) | (m >>> 58);
+        m = x4 * y0; c4 += m & M58; c5 += (Math.multiplyHigh(x4, y0) << 6) | (m >>> 58);
+        m = x4 * y1; c5 += m & M58; c6 += (Math.multiplyHigh(x4, y1) << 6) | (m >>> 58);
+        m = x4 * y2; c6 += m & M58; c7 += (Math.multiplyHigh(x4, y2) << 6) | (m >>> 58);
+        m = x4 * y3; c7 += m & M58; c8 += (Math.multiplyHigh(x4, y3) << 6) | (m >>> 58);
+        m = x4 * y4; c8 += m & M58; c9 += (Math.multiplyHigh(x4, y4) << 6) | (m >>> 58);
+        m = x4 * z5; c0 += m & M58; c1 += (Math.multiplyHigh(x4, z5) << 6) | (m >>> 58);
+        m = x4 * z6; c1 += m & M58; c2 += (Math.multiplyHigh(x4, z6) << 6) | (m >>> 58);
+        m = x4 * z7; c2 += m & M58; c3 += (Math.multiplyHigh(x4, z7) << 6) | (m >>> 58);
+        m = x4 * z8; c3 += m & M58; c4 += (Math.multiplyHigh(x4, z8) << 6) | (m >>> 58);
+        m = x5 * y0; c5 += m & M58; c6 += (Math.multiplyHigh(x5, y0) << 6) | (m >>> 58);
+        m = x5 * y1; c6 += m & M58; c7 += (Math.multiplyHigh(x5, y1) << 6) | (m >>> 58);
+        m = x5 * y2; c7 += m & M58; c8 += (Math.multiplyHigh(x5, y2) << 6) | (m >>> 58);
+        m = x5 * y3; c8 += m & M58; c9 += (Math.multiplyHigh(x5, y3) << 6) | (m >>> 58);
+        m = x5 * z4; c0 += m & M58; c1 += (Math.multiplyHigh(x5, z4) << 6) | (m >>> 58);
+        m = x5 * z5; c1 += m & M58; c2 += (Math.multiplyHigh(x5, z5) << 6) | (m >>> 58);
+        m = x5 * z6; c2 += m & M58; c3 += (Math.multiplyHigh(x5, z6) << 6) | (m >>> 58);
+        m = x5 * z7; c3 += m & M58; c4 += (Math.multiplyHigh(x5, z7) << 6) | (m >>> 58);
+        m = x5 * z8; c4 += m & M58; c5 += (Math.multiplyHigh(x5, z8) << 6) | (m >>> 58);
+        m = x6 * y0; c6 += m & M58; c7 += (Math.multiplyHigh(x6, y0) << 6) | (m >>> 58);
+        m = x6 * y1; c7 += m & M58; c8 += (Math.multiplyHigh(x6, y1) << 6) | (m >>> 58);
+        m = x6 * y2; c8 += m & M58; c9 += (Math.multiplyHigh(x6, y2) << 6) | (m >>> 58);
+        m = x6 * z3; c0 += m & M58; c1 += (Math.multiplyHigh(x6, z3) << 6) | (m >>> 58);
+        m = x6 * z4; c1 += m & M58; c2 += (Math.multiplyHigh(x6, z4) << 6) | (m >>> 58);
+        m = x6 * z5; c2 += m & M58; c3 += (Math.multiplyHigh(x6, z5) << 6) | (m >>> 58);
+        m = x6 * z6; c3 += m & M58; c4 += (Math.multiplyHigh(x6, z6) << 6) | (m >>> 58);
+        m = x6 * z7; c4 += m & M58; c5 += (Math.multiplyHigh(x6, z7) << 6) | (m >>> 58);
+        m = x6 * z8; c5 += m & M58; c6 += (Math.multiplyHigh(x6, z8) << 6) | (m >>> 58);
+        m = x7 * y0; c7 += m & M58; c8 += (Math.multiplyHigh(x7, y0) << 6) | (m >>> 58);
+        m = x7 * y1; c8 += m & M58; c9 += (Math.multiplyHigh(x7, y1) << 6) | (m >>> 58);
+        m = x7 * z2; c0 += m & M58; c1 += (Math.multiplyHigh(x7, z2) << 6) | (m >>> 58);
+        m = x7 * z3; c1 += m & M58; c2 += (Math.multiplyHigh(x7, z3) << 6) | (m >>> 58);
+        m = x7 * z4; c2 += m & M58; c3 += (Math.multiplyHigh(x7, z4) << 6) | (m >>> 58);
+        m = x7 * z5; c3 += m & M58; c4 += (Math.multiplyHigh(x7, z5) << 6) | (m >>> 58);
+        m = x7 * z6; c4 += m & M58; c5 += (Math.multiplyHigh(x7, z6) << 6) | (m >>> 58);
+        m = x7 * z7; c5 += m & M58; c6 += (Math.multiplyHigh(x7, z7) << 6) | (m >>> 58);
+        m = x7 * z8; c6 += m & M58; c7 += (Math.multiplyHigh(x7, z8) << 6) | (m >>> 58);
+        m = x8 * y0; c8 += m & M58; c9 += (Math.multiplyHigh(x8, y0) << 6) | (m >>> 58);
+        m = x8 * z1; c0 += m & M58; c1 += (Math.multiplyHigh(x8, z1) << 6) | (m >>> 58);
+        m = x8 * z2; c1 += m & M58; c2 += (Math.multiplyHigh(x8, z2) << 6) | (m >>> 58);
+        m = x8 * z3; c2 += m & M58; c3 += (Math.multiplyHigh(x8, z3) << 6) | (m >>> 58);
+        m = x8 * z4; c3 += m & M58; c4 += (Math.multiplyHigh(x8, z4) << 6) | (m >>> 58);
+        m = x8 * z5; c4 += m & M58; c5 += (Math.multiplyHigh(x8, z5) << 6) | (m >>> 58);
+        m = x8 * z6; c5 += m & M58; c6 += (Math.multiplyHigh(x8, z6) << 6) | (m >>> 58);
+        m = x8 * z7; c6 += m & M58; c7 += (Math.multiplyHigh(x8, z7) << 6) | (m >>> 58);
+        m = x8 * z8; c7 += m & M58; c8 += (Math.multiplyHigh(x8, z8) << 6) | (m >>> 58);
+        carry(c0 + (c9 << 1), c1, c2, c3, c4, c5, c6, c7, c8);
+        return this;
+    }
+
+    /**
+     * this = a^2
+     */
+    public Fp521 square(Fp521 a) {
+        long x0 = a.l[0], x1 = a.l[1], x2 = a.l[2], x3 = a.l[3], x4 = a.l[4], x5 = a.l[5], x6 = a.l[6], x7 = a.l[7], x8 = a.l[8];
+        long c0 = 0, c1 = 0, c2 = 0, c3 = 0, c4 = 0, c5 = 0, c6 = 0, c7 = 0, c8 = 0, c9 = 0, m;
+        // cross products appear twice; those landing at i + j >= 9 are also folded down by 2^522 = 2 (mod p)
+        long d1 = x1 << 1, d2 = x2 << 1, d3 = x3 << 1, d4 = x4 << 1, d5 = x5 << 1, d6 = x6 << 1, d7 = x7 << 1, d8 = x8 << 1;
+        long q1 = x1 << 2, q2 = x2 << 2, q3 = x3 << 2, q4 = x4 << 2, q5 = x5 << 2, q6 = x6 << 2, q7 = x7 << 2, q8 = x8 << 2;
+        m = x0 * x0; c0 += m & M58; c1 += (Math.multiplyHigh(x0, x0) << 6) | (m >>> 58);
+        m = x0 * d1; c1 += m & M58; c2 += (Math.multiplyHigh(x0, d1) << 6) | (m >>> 58);
+        m = x0 * d2; c2 += m & M58; c3 += (Math.multiplyHigh(x0, d2) << 6) | (m >>> 58);
+        m = x0 * d3; c3 += m & M58; c4 += (Math.multiplyHigh(x0, d3) << 6) | (m >>> 58);
+        m = x0 * d4; c4 += m & M58; c5 += (Math.multiplyHigh(x0, d4) << 6) | (m >>> 58);
+        m = x0 * d5; c5 += m & M58; c6 += (Math.multiplyHigh(x0, d5) << 6) | (m >>> 58);
+        m = x0 * d6; c6 += m & M58; c7 += (Math.multiplyHigh(x0, d6) << 6) | (m >>> 58);
+        m = x0 * d7; c7 += m & M58; c8 += (Math.multiplyHigh(x0, d7) << 6) | (m >>> 58);
+        m = x0 * d8; c8 += m & M58; c9 += (Math.multiplyHigh(x0, d8) << 6) | (m >>> 58);
+        m = x1 * x1; c2 += m & M58; c3 += (Math.multiplyHigh(x1, x1) << 6) | (m >>> 58);
+        m = x1 * d2; c3 += m & M58; c4 += (Math.multiplyHigh(x1, d2) << 6) | (m >>> 58);
+        m = x1 * d3; c4 += m & M58; c5 += (Math.multiplyHigh(x1, d3) << 6) | (m >>> 58);
+        m = x1 * d4; c5 += m & M58; c6 += (Math.multiplyHigh(x1, d4) << 6) | (m >>> 58);
+        m = x1 * d5; c6 += m & M58; c7 += (Math.multiplyHigh(x1, d5) << 6) | (m >>> 58);
+        m = x1 * d6; c7 += m & M58; c8 += (Math.multiplyHigh(x1, d6) << 6) | (m >>> 58);
+        m = x1 * d7; c8 += m & M58; c9 += (Math.multiplyHigh(x1, d7) << 6) | (m >>> 58);
+        m = x1 * q8; c0 += m & M58; c1 += (Math.multiplyHigh(x1, q8) << 6) | (m >>> 58);
+        m = x2 * x2; c4 += m & M58; c5 += (Math.multiplyHigh(x2, x2) << 6) | (m >>> 58);
+        m = x2 * d3; c5 += m & M58; c6 += (Math.multiplyHigh(x2, d3) << 6) | (m >>> 58);
+        m = x2 * d4; c6 += m & M58; c7 += (Math.multiplyHigh(x2, d4) << 6) | (m >>> 58);
+        m = x2 * d5; c7 += m & M58; c8 += (Math.multiplyHigh(x2, d5) << 6) | (m >>> 58);
+        m = x2 * d6; c8 += m & M58; c9 += (Math.multiplyHigh(x2, d6) << 6) | (m >>> 58);
+        m = x2 * q7; c0 += m & M58; c1 += (Math.multiplyHigh(x2, q7) << 6) | (m >>> 58);
+        m = x2 * q8; c1 += m & M58; c2 += (Math.multiplyHigh(x2, q8) << 6) | (m >>> 58);
+        m = x3 * x3; c6 += m & M58; c7 += (Math.multiplyHigh(x3, x3) << 6) | (m >>> 58);
+        m = x3 * d4; c7 += m & M58; c8 += (Math.multiplyHigh(x3, d4) << 6) | (m >>> 58);
+        m = x3 * d5; c8 += m & M58; c9 += (Math.multiplyHigh(x3, d5) << 6) | (m >>> 58);
+        m = x3 * q6; c0 += m & M58; c1 += (Math.multiplyHigh(x3, q6) << 6) | (m >>> 58);
+        m = x3 * q7; c1 += m & M58; c2 += (Math.multiplyHigh(x3, q7) << 6) | (m >>> 58);
+        m = x3 * q8; c2 += m & M58; c3 += (Math.multiplyHigh(x3, q8) << 6) | (m >>> 58);
+        m = x4 * x4; c8 += m & M58; c9 += (Math.multiplyHigh(x4, x4) << 6) | (m >>> 58);
+        m = x4 * q5; c0 += m & M58; c1 += (Math.multiplyHigh(x4, q5) << 6) | (m >>> 58);
+        m = x4 * q6; c1 += m & M58; c2 += (Math.multiplyHigh(x4, q6) << 6) | (m >>> 58);
+        m = x4 * q7; c2 += m & M58; c3 += (Math.multiplyHigh(x4, q7) << 6) | (m >>> 58);
+        m = x4 * q8; c3 += m & M58; c4 += (Math.multiplyHigh(x4, q8) << 6) | (m >>> 58);
+        m = x5 * d5; c1 += m & M58; c2 += (Math.multiplyHigh(x5, d5) << 6) | (m >>> 58);
+        m = x5 * q6; c2 += m & M58; c3 += (Math.multiplyHigh(x5, q6) << 6) | (m >>> 58);
+        m = x5 * q7; c3 += m & M58; c4 += (Math.multiplyHigh(x5, q7) << 6) | (m >>> 58);
+        m = x5 * q8; c4 += m & M58; c5 += (Math.multiplyHigh(x5, q8) << 6) | (m >>> 58);
+        m = x6 * d6; c3 += m & M58; c4 += (Math.multiplyHigh(x6, d6) << 6) | (m >>> 58);
+        m = x6 * q7; c4 += m & M58; c5 += (Math.multiplyHigh(x6, q7) << 6) | (m >>> 58);
+        m = x6 * q8; c5 += m & M58; c6 += (Math.multiplyHigh(x6, q8) << 6) | (m >>> 58);
+        m = x7 * d7; c5 += m & M58; c6 += (Math.multiplyHigh(x7, d7) << 6) | (m >>> 58);
+        m = x7 * q8; c6 += m & M58; c7 += (Math.multiplyHigh(x7, q8) << 6) | (m >>> 58);
+        m = x8 * d8; c7 += m & M58; c8 += (Math.multiplyHigh(x8, d8) << 6) | (m >>> 58);
+        carry(c0 + (c9 << 1), c1, c2, c3, c4, c5, c6, c7, c8);
+        return this;
+    }
+
+    /**
+     * this = a^(2^n), i.e. a squared n times
+     */
+    public Fp521 squareN(Fp521 a, int n) {
+        set(a);
+        for (int i = 0; i < n; i++) {
+            square(this);
+        }
+        return this;
+    }
+
+    /**
+     * this = a^-1 = a^(p - 2), with an addition chain over a^(2^k - 1) (520 squarings, 13 multiplications).
+     * The inverse of zero is zero.
+     */
+    public Fp521 invert(Fp521 a) {
+        if (Metrics.ENABLED) {
+            Metrics.INVERSIONS.increment();
+        }
+        Fp521 a1 = new Fp521(a);
+        squareN(pow2k519m1(a1), 2);
+        return mul(this, a1);                      // a^(2^521 - 3)
+    }
+
+    /**
+     * this = sqrt(u / v), without a separate inversion: for p = 3 mod 4 a candidate root of u/v is
+     * u^3 v (u^5 v^3)^((p - 3) / 4), and (p - 3) / 4 = 2^519 - 1 shares the inversion's addition chain.
+     *
+     * @return true iff u/v is a square (v != 0); otherwise this holds a meaningless value
+     */
+    public boolean sqrtRatio(Fp521 u, Fp521 v) {
+        Fp521 u1 = new Fp521(u);
+        Fp521 v1 = new Fp521(v);
+        Fp521 u3v = new Fp521().square(u1);
+        Fp521 u5v3 = new Fp521().square(v1);
+        u5v3.mul(u5v3, u3v);                       // u^2 v^2
+        u3v.mul(u3v, u1).mul(u3v, v1);              // u^3 v
+        u5v3.mul(u5v3, u3v);                       // u^5 v^3
+        mul(u3v, pow2k519m1(u5v3));
+        Fp521 check = new Fp521().square(this);
+        check.mul(check, v1);
+        return !v1.isZero() && check.equals(u1);
+    }
+
+    /**
+     * this = a^((p + 1) / 4) = a^(2^519), a square root of a whenever one exists (p = 3 mod 4)
+     */
+    public Fp521 sqrt(Fp521 a) {
+        return squareN(a, 519);
+    }
+
+    public boolean isZero() {
+        long[] c = canonical();
+        long acc = 0;
+        for (int i = 0; i < 9; i++) {
+            acc |= c[i];
+        }
+        return acc == 0;
+    }
+
+    /**
+     * @return true iff the canonical representative of this element is odd
+     */
+    public boolean isOdd() {
+        return (canonical()[0] & 1) != 0;
+    }
+
+    public boolean equals(Fp521 a) {
+        return java.util.Arrays.equals(canonical(), a.canonical());
+    }
+
+    /**
+     * @return a^(2^519 - 1), via an addition chain over a^(2^k - 1) (518 squarings, 12 multiplications)
+     */
+    private static Fp521 pow2k519m1(Fp521 a) {
+        Fp521 t2 = new Fp521().square(a);
+        t2.mul(t2, a);                             // a^(2^2 - 1)
+        Fp521 t3 = new Fp521().square(t2);
+        t3.mul(t3, a);                             // a^(2^3 - 1)
+        Fp521 t4 = new Fp521().squareN(t2, 2);
+        t4.mul(t4, t2);                            // a^(2^4 - 1)
+        Fp521 t = new Fp521().squareN(t4, 4);
+        t.mul(t, t4);                              // a^(2^8 - 1)
+        Fp521 u = new Fp521();
+        for (int k = 8; k < 512; k <<= 1) {
+            u.squareN(t, k);
+            t.mul(u, t);                           // a^(2^(2k) - 1)
+        }
+        t.squareN(t, 4);
+        t.mul(t, t4);                              // a^(2^516 - 1)
+        t.squareN(t, 3);
+        return t.mul(t, t3);                       // a^(2^519 - 1)
+    }
+
+    /**
+     * Propagate carries through column sums c0..c8 and store the partially reduced result
+     * (limbs below 2^58, top limb below 2^57, except for a tiny excess left in limb 1).
+     */
+    private void carry(long c0, long c1, long c2, long c3, long c4, long c5, long c6, long c7, long c8) {
+        c1 += c0 >> 58; c0 &= M58;
+        c2 += c1 >> 58; c1 &= M58;
+        c3 += c2 >> 58; c2 &= M58;
+        c4 += c3 >> 58; c3 &= M58;
+        c5 += c4 >> 58; c4 &= M58;
+        c6 += c5 >> 58; c5 &= M58;
+        c7 += c6 >> 58; c6 &= M58;
+        c8 += c7 >> 58; c7 &= M58;
+        c0 += c8 >> 57; c8 &= M57; // 2^521 = 1 (mod p)
+        c1 += c0 >> 58; c0 &= M58;
+        l[0] = c0; l[1] = c1; l[2] = c2; l[3] = c3; l[4] = c4;
+        l[5] = c5; l[6] = c6; l[7] = c7; l[8] = c8;
+    }
+
+    /**
+     * @return the limbs of the unique representative of this element in [0, p)
+     */
+    private long[] canonical() {
+        long[] c = l.clone();
+        do {
+            for (int i = 0; i < 8; i++) {
+                c[i + 1] += c[i] >> 58;
+                c[i] &= M58;
+            }
+            c[0] += c[8] >> 57;
+            c[8] &= M57;
+        } while ((c[0] >> 58) != 0);
+        boolean isP = c[8] == M57;
+        for (int i = 0; i < 8; i++) {
+            isP &= c[i] == M58;
+        }
+        if (isP) {
+            java.util.Arrays.fill(c, 0);
+        }
+        return c;
+    }
+}
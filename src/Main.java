@@ -2,9 +2,17 @@ import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.BitSet;
@@ -18,6 +26,14 @@ import java.util.BitSet;
  * @author Arwain Karlin
  */
 public class Main {
+    private static final int CHUNK_SIZE = 1 << 16; // bytes read per file I/O call
+    // per-thread read buffer of hash(File); direct memory is only freed by GC, so it is reused rather than allocated per file
+    private static final ThreadLocal<ByteBuffer> HASH_CHUNK = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(CHUNK_SIZE));
+    private static final int PARALLEL_BLOCK = 1 << 13; // ParallelHash leaf size in bytes
+    private static final int SIG_H_LENGTH = 64; // bytes of h in signature.txt
+    private static final int SIG_Z_LENGTH = 66; // bytes of z in signature.txt (z < r < 2^519)
+    private static final String DEFAULT_CRYPTOGRAM = "cryptogram.cgm"; // container file used when -i/-o is not given
+    private static final SHAKE.KMACContext HASH = new SHAKE.KMACContext(asciiStringToByteArray(""), asciiStringToByteArray("D"));
     private static int test_hexdigit(char ch) {
         if (ch >= '0' && ch <= '9')
             return ch - '0';
@@ -283,9 +299,162 @@ public class Main {
         if (!Arrays.equals(val_sample6, out_sample6)) {
             throw new RuntimeException("NIST sample 6 failure!");
         }
+        byte[][] val_shared = SHAKE.KMACXOF256SharedPrefix(new byte[][]{K, K}, new byte[][]{X_sample4, X_sample6}, L, S);
+        if (!Arrays.equals(val_shared[0], out_sample4) || !Arrays.equals(val_shared[1], out_sample6)) {
+            throw new RuntimeException("NIST samples 4 and 6 (shared prefix) failure!");
+        }
+        // the same samples through a precomputed key, absorbed from and squeezed into direct buffers
+        // in uneven pieces, so the lane-aligned and byte-wise paths both run
+        SHAKE.KMACContext ctx = new SHAKE.KMACContext(K, S);
+        if (!Arrays.equals(ctx.KMACXOF256(X_sample4, L), out_sample4)) {
+            throw new RuntimeException("NIST sample 4 (precomputed key) failure!");
+        }
+        ByteBuffer X = ByteBuffer.allocateDirect(X_sample6.length);
+        X.put(X_sample6).flip();
+        SHAKE mac = ctx.newSponge();
+        for (int piece = 1; X.hasRemaining(); piece += 7) {
+            ByteBuffer slice = X.duplicate();
+            slice.limit(Math.min(X.limit(), X.position() + piece));
+            mac.update(slice);
+            X.position(slice.position());
+        }
+        mac.xof();
+        ByteBuffer T = ByteBuffer.allocateDirect(out_sample6.length + 3);
+        T.position(3); // not lane-aligned
+        for (int piece = 5; T.hasRemaining(); piece += 9) {
+            ByteBuffer slice = T.duplicate();
+            slice.limit(Math.min(T.limit(), T.position() + piece));
+            mac.xorOut(slice);
+            T.position(slice.position());
+        }
+        byte[] val_buffers = new byte[out_sample6.length];
+        T.position(3);
+        T.get(val_buffers);
+        if (!Arrays.equals(val_buffers, out_sample6)) {
+            throw new RuntimeException("NIST sample 6 (direct buffers) failure!");
+        }
         System.out.println("NIST SP 800-185/KMACXOF256 Sample Tests OK!");
     }
 
+    private static void test_tuplehash256() {
+        byte[][] X_sample4 = new byte[][]{
+                {(byte) 0x00, (byte) 0x01, (byte) 0x02},
+                {(byte) 0x10, (byte) 0x11, (byte) 0x12, (byte) 0x13, (byte) 0x14, (byte) 0x15}
+        };
+        byte[][] X_sample5 = X_sample4;
+        byte[][] X_sample6 = new byte[][]{
+                X_sample4[0],
+                X_sample4[1],
+                {(byte) 0x20, (byte) 0x21, (byte) 0x22, (byte) 0x23, (byte) 0x24, (byte) 0x25, (byte) 0x26, (byte) 0x27, (byte) 0x28}
+        };
+        int L = 512;
+        byte[] S = asciiStringToByteArray("My Tuple App");
+
+        byte[] out_sample4 = new byte[]{
+                (byte) 0xCF, (byte) 0xB7, (byte) 0x05, (byte) 0x8C, (byte) 0xAC, (byte) 0xA5, (byte) 0xE6, (byte) 0x68, (byte) 0xF8, (byte) 0x1A, (byte) 0x12, (byte) 0xA2, (byte) 0x0A, (byte) 0x21, (byte) 0x95, (byte) 0xCE,
+                (byte) 0x97, (byte) 0xA9, (byte) 0x25, (byte) 0xF1, (byte) 0xDB, (byte) 0xA3, (byte) 0xE7, (byte) 0x44, (byte) 0x9A, (byte) 0x56, (byte) 0xF8, (byte) 0x22, (byte) 0x01, (byte) 0xEC, (byte) 0x60, (byte) 0x73,
+                (byte) 0x11, (byte) 0xAC, (byte) 0x26, (byte) 0x96, (byte) 0xB1, (byte) 0xAB, (byte) 0x5E, (byte) 0xA2, (byte) 0x35, (byte) 0x2D, (byte) 0xF1, (byte) 0x42, (byte) 0x3B, (byte) 0xDE, (byte) 0x7B, (byte) 0xD4,
+                (byte) 0xBB, (byte) 0x78, (byte) 0xC9, (byte) 0xAE, (byte) 0xD1, (byte) 0xA8, (byte) 0x53, (byte) 0xC7, (byte) 0x86, (byte) 0x72, (byte) 0xF9, (byte) 0xEB, (byte) 0x23, (byte) 0xBB, (byte) 0xE1, (byte) 0x94
+        };
+        byte[] out_sample5 = new byte[]{
+                (byte) 0x14, (byte) 0x7C, (byte) 0x21, (byte) 0x91, (byte) 0xD5, (byte) 0xED, (byte) 0x7E, (byte) 0xFD, (byte) 0x98, (byte) 0xDB, (byte) 0xD9, (byte) 0x6D, (byte) 0x7A, (byte) 0xB5, (byte) 0xA1, (byte) 0x16,
+                (byte) 0x92, (byte) 0x57, (byte) 0x6F, (byte) 0x5F, (byte) 0xE2, (byte) 0xA5, (byte) 0x06, (byte) 0x5F, (byte) 0x3E, (byte) 0x33, (byte) 0xDE, (byte) 0x6B, (byte) 0xBA, (byte) 0x9F, (byte) 0x3A, (byte) 0xA1,
+                (byte) 0xC4, (byte) 0xE9, (byte) 0xA0, (byte) 0x68, (byte) 0xA2, (byte) 0x89, (byte) 0xC6, (byte) 0x1C, (byte) 0x95, (byte) 0xAA, (byte) 0xB3, (byte) 0x0A, (byte) 0xEE, (byte) 0x1E, (byte) 0x41, (byte) 0x0B,
+                (byte) 0x0B, (byte) 0x60, (byte) 0x7D, (byte) 0xE3, (byte) 0x62, (byte) 0x0E, (byte) 0x24, (byte) 0xA4, (byte) 0xE3, (byte) 0xBF, (byte) 0x98, (byte) 0x52, (byte) 0xA1, (byte) 0xD4, (byte) 0x36, (byte) 0x7E
+        };
+        byte[] out_sample6 = new byte[]{
+                (byte) 0x45, (byte) 0x00, (byte) 0x0B, (byte) 0xE6, (byte) 0x3F, (byte) 0x9B, (byte) 0x6B, (byte) 0xFD, (byte) 0x89, (byte) 0xF5, (byte) 0x47, (byte) 0x17, (byte) 0x67, (byte) 0x0F, (byte) 0x69, (byte) 0xA9,
+                (byte) 0xBC, (byte) 0x76, (byte) 0x35, (byte) 0x91, (byte) 0xA4, (byte) 0xF0, (byte) 0x5C, (byte) 0x50, (byte) 0xD6, (byte) 0x88, (byte) 0x91, (byte) 0xA7, (byte) 0x44, (byte) 0xBC, (byte) 0xC6, (byte) 0xE7,
+                (byte) 0xD6, (byte) 0xD5, (byte) 0xB5, (byte) 0xE8, (byte) 0x2C, (byte) 0x01, (byte) 0x8D, (byte) 0xA9, (byte) 0x99, (byte) 0xED, (byte) 0x35, (byte) 0xB0, (byte) 0xBB, (byte) 0x49, (byte) 0xC9, (byte) 0x67,
+                (byte) 0x8E, (byte) 0x52, (byte) 0x6A, (byte) 0xBD, (byte) 0x8E, (byte) 0x85, (byte) 0xC1, (byte) 0x3E, (byte) 0xD2, (byte) 0x54, (byte) 0x02, (byte) 0x1D, (byte) 0xB9, (byte) 0xE7, (byte) 0x90, (byte) 0xCE
+        };
+        byte[] val_sample4 = SHAKE.TupleHash256(X_sample4, L, asciiStringToByteArray(""));
+        byte[] val_sample5 = SHAKE.TupleHash256(X_sample5, L, S);
+        byte[] val_sample6 = SHAKE.TupleHash256(X_sample6, L, S);
+
+        if (!Arrays.equals(val_sample4, out_sample4)) {
+            throw new RuntimeException("NIST sample 4 failure!");
+        }
+        if (!Arrays.equals(val_sample5, out_sample5)) {
+            throw new RuntimeException("NIST sample 5 failure!");
+        }
+        if (!Arrays.equals(val_sample6, out_sample6)) {
+            throw new RuntimeException("NIST sample 6 failure!");
+        }
+        System.out.println("NIST SP 800-185/TupleHash256 Sample Tests OK!");
+    }
+
+    private static void test_parallelhash256() {
+        byte[] X_sample4 = new byte[24];
+        for (int i = 0; i < X_sample4.length; i++) {
+            X_sample4[i] = (byte) ((i / 8) * 0x10 + i % 8);
+        }
+        byte[] X_sample5 = X_sample4;
+        byte[] X_sample6 = new byte[72];
+        for (int i = 0; i < X_sample6.length; i++) {
+            X_sample6[i] = (byte) ((i / 12) * 0x10 + i % 12);
+        }
+        int L = 512;
+        byte[] S = asciiStringToByteArray("Parallel Data");
+
+        byte[] out_sample4 = new byte[]{
+                (byte) 0xBC, (byte) 0x1E, (byte) 0xF1, (byte) 0x24, (byte) 0xDA, (byte) 0x34, (byte) 0x49, (byte) 0x5E, (byte) 0x94, (byte) 0x8E, (byte) 0xAD, (byte) 0x20, (byte) 0x7D, (byte) 0xD9, (byte) 0x84, (byte) 0x22,
+                (byte) 0x35, (byte) 0xDA, (byte) 0x43, (byte) 0x2D, (byte) 0x2B, (byte) 0xBC, (byte) 0x54, (byte) 0xB4, (byte) 0xC1, (byte) 0x10, (byte) 0xE6, (byte) 0x4C, (byte) 0x45, (byte) 0x11, (byte) 0x05, (byte) 0x53,
+                (byte) 0x1B, (byte) 0x7F, (byte) 0x2A, (byte) 0x3E, (byte) 0x0C, (byte) 0xE0, (byte) 0x55, (byte) 0xC0, (byte) 0x28, (byte) 0x05, (byte) 0xE7, (byte) 0xC2, (byte) 0xDE, (byte) 0x1F, (byte) 0xB7, (byte) 0x46,
+                (byte) 0xAF, (byte) 0x97, (byte) 0xA1, (byte) 0xDD, (byte) 0x01, (byte) 0xF4, (byte) 0x3B, (byte) 0x82, (byte) 0x4E, (byte) 0x31, (byte) 0xB8, (byte) 0x76, (byte) 0x12, (byte) 0x41, (byte) 0x04, (byte) 0x29
+        };
+        byte[] out_sample5 = new byte[]{
+                (byte) 0xCD, (byte) 0xF1, (byte) 0x52, (byte) 0x89, (byte) 0xB5, (byte) 0x4F, (byte) 0x62, (byte) 0x12, (byte) 0xB4, (byte) 0xBC, (byte) 0x27, (byte) 0x05, (byte) 0x28, (byte) 0xB4, (byte) 0x95, (byte) 0x26,
+                (byte) 0x00, (byte) 0x6D, (byte) 0xD9, (byte) 0xB5, (byte) 0x4E, (byte) 0x2B, (byte) 0x6A, (byte) 0xDD, (byte) 0x1E, (byte) 0xF6, (byte) 0x90, (byte) 0x0D, (byte) 0xDA, (byte) 0x39, (byte) 0x63, (byte) 0xBB,
+                (byte) 0x33, (byte) 0xA7, (byte) 0x24, (byte) 0x91, (byte) 0xF2, (byte) 0x36, (byte) 0x96, (byte) 0x9C, (byte) 0xA8, (byte) 0xAF, (byte) 0xAE, (byte) 0xA2, (byte) 0x9C, (byte) 0x68, (byte) 0x2D, (byte) 0x47,
+                (byte) 0xA3, (byte) 0x93, (byte) 0xC0, (byte) 0x65, (byte) 0xB3, (byte) 0x8E, (byte) 0x29, (byte) 0xFA, (byte) 0xE6, (byte) 0x51, (byte) 0xA2, (byte) 0x09, (byte) 0x1C, (byte) 0x83, (byte) 0x31, (byte) 0x10
+        };
+        byte[] out_sample6 = new byte[]{
+                (byte) 0x69, (byte) 0xD0, (byte) 0xFC, (byte) 0xB7, (byte) 0x64, (byte) 0xEA, (byte) 0x05, (byte) 0x5D, (byte) 0xD0, (byte) 0x93, (byte) 0x34, (byte) 0xBC, (byte) 0x60, (byte) 0x21, (byte) 0xCB, (byte) 0x7E,
+                (byte) 0x4B, (byte) 0x61, (byte) 0x34, (byte) 0x8D, (byte) 0xFF, (byte) 0x37, (byte) 0x5D, (byte) 0xA2, (byte) 0x62, (byte) 0x67, (byte) 0x1C, (byte) 0xDE, (byte) 0xC3, (byte) 0xEF, (byte) 0xFA, (byte) 0x8D,
+                (byte) 0x1B, (byte) 0x45, (byte) 0x68, (byte) 0xA6, (byte) 0xCC, (byte) 0xE1, (byte) 0x6B, (byte) 0x1C, (byte) 0xAD, (byte) 0x94, (byte) 0x6D, (byte) 0xDD, (byte) 0xE2, (byte) 0x7F, (byte) 0x6C, (byte) 0xE2,
+                (byte) 0xB8, (byte) 0xDE, (byte) 0xE4, (byte) 0xCD, (byte) 0x1B, (byte) 0x24, (byte) 0x85, (byte) 0x1E, (byte) 0xBF, (byte) 0x00, (byte) 0xEB, (byte) 0x90, (byte) 0xD4, (byte) 0x38, (byte) 0x13, (byte) 0xE9
+        };
+        byte[] val_sample4 = SHAKE.ParallelHash256(X_sample4, 8, L, asciiStringToByteArray(""));
+        byte[] val_sample5 = SHAKE.ParallelHash256(X_sample5, 8, L, S);
+        byte[] val_sample6 = SHAKE.ParallelHash256(X_sample6, 12, L, S);
+
+        if (!Arrays.equals(val_sample4, out_sample4)) {
+            throw new RuntimeException("NIST sample 4 failure!");
+        }
+        if (!Arrays.equals(val_sample5, out_sample5)) {
+            throw new RuntimeException("NIST sample 5 failure!");
+        }
+        if (!Arrays.equals(val_sample6, out_sample6)) {
+            throw new RuntimeException("NIST sample 6 failure!");
+        }
+
+        // a large input with a small block size spans several digest windows;
+        // check it against a sequential evaluation of the definition
+        byte[] X = new byte[1 << 28];
+        int B = 8;
+        byte[] z = new byte[64];
+        SHAKE leaf = new SHAKE(), ref = new SHAKE();
+        ref.cinit256(asciiStringToByteArray("ParallelHash"), S);
+        ref.update(new byte[]{(byte) 0x01, (byte) B}, 2); // left_encode(B)
+        for (int i = 0; i < X.length; i += B) {
+            leaf.init256();
+            leaf.update(X, i, B);
+            leaf.xof();
+            leaf.out(z, 64);
+            ref.update(z, 64);
+        }
+        ref.update(new byte[]{(byte) 0x02, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x04}, 5); // right_encode(2^25)
+        ref.update(new byte[]{(byte) 0x01, (byte) 0x00, (byte) 0x02}, 3); // right_encode(256)
+        ref.xof();
+        byte[] out_large = new byte[32];
+        ref.out(out_large, 32);
+        if (!Arrays.equals(SHAKE.ParallelHash256(X, B, 256, S), out_large)) {
+            throw new RuntimeException("ParallelHash256 large input failure!");
+        }
+        System.out.println("NIST SP 800-185/ParallelHash256 Sample Tests OK!");
+    }
+
     /**
      * Reference : https://stackoverflow.com/questions/5683206/how-to-create-an-array-of-20-random-bytes
      *
@@ -301,159 +470,627 @@ public class Main {
     }
 
     private static String hash(byte[] m) throws UnsupportedEncodingException {
-        byte[] byteArr = SHAKE.KMACXOF256(asciiStringToByteArray(""), m, 512, asciiStringToByteArray("D"));
-        StringBuilder hash = new StringBuilder();
+        return toHex(digest(m));
+    }
+
+    /**
+     * @return the 512-bit KMACXOF256 digest printed by -hash -m
+     */
+    static byte[] digest(byte[] m) {
+        Metrics.Timer timer = Metrics.begin(Metrics.Op.HASH);
+        try {
+            return HASH.KMACXOF256(m, 512);
+        } finally {
+            Metrics.end(timer);
+        }
+    }
+
+    /**
+     * Hash a file by streaming it through the KMACXOF256 sponge in fixed-size chunks,
+     * so memory use does not depend on the file size.
+     *
+     * @param theFile the file to hash
+     * @return the same hex digest as hash(readFile(theFile))
+     */
+    static String hash(File theFile) throws IOException {
+        Metrics.Timer timer = Metrics.begin(Metrics.Op.HASH);
+        try {
+            checkFile(theFile);
+            SHAKE shake = HASH.newSponge();
+            ByteBuffer chunk = HASH_CHUNK.get();
+            chunk.clear();
+            try (FileChannel in = FileChannel.open(theFile.toPath(), StandardOpenOption.READ)) {
+                while (in.read(chunk) >= 0) {
+                    chunk.flip();
+                    shake.update(chunk);
+                    chunk.clear();
+                }
+            }
+            shake.xof();
+            byte[] byteArr = new byte[64];
+            shake.out(byteArr, byteArr.length);
+            return toHex(byteArr);
+        } finally {
+            Metrics.end(timer);
+        }
+    }
+
+    /**
+     * Hash a file with ParallelHashXOF256, so large files are hashed on all cores.
+     * The digest differs from the sequential -hash digest of the same file.
+     *
+     * @param theFile the file to hash
+     * @return the hex digest
+     */
+    private static String hashParallel(File theFile) throws IOException {
+        checkFile(theFile);
+        try (FileChannel in = FileChannel.open(theFile.toPath(), StandardOpenOption.READ)) {
+            return toHex(SHAKE.ParallelHashXOF256(in, PARALLEL_BLOCK, 512, asciiStringToByteArray("D")));
+        }
+    }
+
+    private static String toHex(byte[] byteArr) {
+        StringBuilder hex = new StringBuilder();
         for (byte b : byteArr) {
-            hash.append(byteToHex(b));
+            hex.append(byteToHex(b));
         }
-        return hash.toString();
+        return hex.toString();
     }
 
-    private static String decrypt(Cryptogram cryptogram, byte[] pw) throws UnsupportedEncodingException {
-        Point z = cryptogram.getPoint();
-        byte[] c = cryptogram.getCipherText();
-        byte[] t = cryptogram.getMAC();
-        BigInteger s = new BigInteger(SHAKE.KMACXOF256(pw, "".getBytes(),
-                512, "K".getBytes())).multiply(BigInteger.valueOf(4));
-        Point W = exponentiation(s, z);
-        byte[] keka = SHAKE.KMACXOF256(W.getX().toByteArray(), "".getBytes(), 1024, asciiStringToByteArray("P"));
-        byte[] ke = Arrays.copyOfRange(keka, 0, keka.length / 2);
-        byte[] ka = Arrays.copyOfRange(keka, (keka.length / 2) + 1, keka.length - 1);
-        byte[] m = SHAKE.KMACXOF256(ke, "".getBytes(), c.length * 8, asciiStringToByteArray("PKE"));
+    /**
+     * @return the plaintext of a public-key cryptogram, or null if the MAC does not verify
+     */
+    static byte[] decryptBytes(Cryptogram cryptogram, byte[] pw) {
+        byte[] m = new byte[Math.toIntExact(cryptogram.getCipherLength())];
+        return decrypt(cryptogram, pw, ByteBuffer.wrap(m)) ? m : null;
+    }
+
+    /**
+     * Decrypt a public-key cryptogram into dst (see open).
+     *
+     * @param dst receives getCipherLength() bytes at its position
+     * @return true iff the MAC verifies
+     */
+    static boolean decrypt(Cryptogram cryptogram, byte[] pw, ByteBuffer dst) {
+        Metrics.Timer timer = Metrics.begin(Metrics.Op.DECRYPT_PK);
+        try {
+            BigInteger s = new BigInteger(SHAKE.KMACXOF256(pw, "".getBytes(),
+                    512, "K".getBytes())).multiply(BigInteger.valueOf(4)).abs();
+            Point W = cryptogram.getPoint().multiply(s);
+            byte[] keka = SHAKE.KMACXOF256(W.getX().toByteArray(), "".getBytes(), 1024, asciiStringToByteArray("P"));
+            return open(cryptogram, keka, "PKE", "PKA", dst);
+        } finally {
+            Metrics.end(timer);
+        }
+    }
+
+    /**
+     * Decrypt a public-key cryptogram and write the plaintext to out, but only once the MAC has verified.
+     *
+     * @return true iff the MAC verifies; nothing is written otherwise
+     */
+    static boolean decrypt(Cryptogram cryptogram, byte[] pw, WritableByteChannel out) throws IOException {
+        return write(decryptBytes(cryptogram, pw), out);
+    }
+
+    static Cryptogram encrypt(byte[] m, Point V) {
+        Metrics.Timer timer = Metrics.begin(Metrics.Op.ENCRYPT_PK);
+        try {
+            BigInteger k = new BigInteger(randomByte()).multiply(BigInteger.valueOf(4));
+            return encrypt(m, RecipientCache.SHARED.multiply(V, k), Point.multiplyG(k));
+        } finally {
+            Metrics.end(timer);
+        }
+    }
+
+    /**
+     * Encrypt many messages under the same public key.
+     * The W and Z points of all cryptograms are brought to affine form together, with a single inversion.
+     *
+     * @param m the messages
+     * @param V the recipient's public key
+     * @return one cryptogram per message, in order
+     */
+    static Cryptogram[] encrypt(byte[][] m, Point V) {
+        Point[] points = new Point[2 * m.length]; // W_0, Z_0, W_1, Z_1, ...
         for (int i = 0; i < m.length; i++) {
-            m[i] ^= c[i];
+            BigInteger k = new BigInteger(randomByte()).multiply(BigInteger.valueOf(4));
+            points[2 * i] = RecipientCache.SHARED.multiply(V, k);
+            points[2 * i + 1] = Point.multiplyG(k);
         }
-        byte[] tPrime = SHAKE.KMACXOF256(ka, m, 512, asciiStringToByteArray("PKA"));
-        if (!Arrays.equals(t, tPrime)) {
-            return new String(m, "UTF-8");
+        Point.normalize(points);
+        Cryptogram[] grams = new Cryptogram[m.length];
+        for (int i = 0; i < m.length; i++) {
+            grams[i] = encrypt(m[i], points[2 * i], points[2 * i + 1]);
         }
-        return "";
+        return grams;
     }
 
-    private static Cryptogram encrypt(byte[] m, Point V) {
-        BigInteger k = new BigInteger(randomByte()).multiply(BigInteger.valueOf(4));
-        Point G = new Point(BigInteger.valueOf(18), false);
-        Point W = exponentiation(k, V);
-        Point Z = exponentiation(k, G);
+    /**
+     * Finish a public-key encryption once the shared secret W = k*V and the header Z = k*G are known.
+     */
+    private static Cryptogram encrypt(byte[] m, Point W, Point Z) {
         byte[] keka = SHAKE.KMACXOF256(W.getX().toByteArray(), "".getBytes(), 1024, asciiStringToByteArray("P"));
         byte[] ke = Arrays.copyOfRange(keka, 0, keka.length / 2);
         byte[] ka = Arrays.copyOfRange(keka, (keka.length / 2) + 1, keka.length - 1);
-        byte[] c = SHAKE.KMACXOF256(ke, "".getBytes(), m.length * 8, asciiStringToByteArray("PKE"));
-        for (int i = 0; i < c.length; i++) {
-            c[i] ^= m[i];
-        }
+        byte[] c = Arrays.copyOf(m, m.length);
+        keystream(ke, "PKE").xorOut(c, 0, c.length);
         byte[] t = SHAKE.KMACXOF256(ka, m, 512, asciiStringToByteArray("PKA"));
         return new Cryptogram(Z, c, t);
     }
 
-    private static Cryptogram encrypt(byte[] m, byte[] pw) {
-        byte[] z = randomByte();
-        byte[] keka = SHAKE.KMACXOF256(SHAKE.concat(z, pw), "".getBytes(), 1024, asciiStringToByteArray("S"));
-        byte[] ke = Arrays.copyOfRange(keka, 0, keka.length / 2);
-        byte[] ka = Arrays.copyOfRange(keka, (keka.length / 2) + 1, keka.length - 1);
-        byte[] c = SHAKE.KMACXOF256(ke, "".getBytes(), m.length * 8, asciiStringToByteArray("SKE"));
-        for (int i = 0; i < c.length; i++) {
-            c[i] ^= m[i];
+    static Cryptogram encrypt(byte[] m, byte[] pw) {
+        Metrics.Timer timer = Metrics.begin(Metrics.Op.ENCRYPT);
+        try {
+            byte[] z = randomByte();
+            byte[] keka = SHAKE.KMACXOF256(SHAKE.concat(z, pw), "".getBytes(), 1024, asciiStringToByteArray("S"));
+            byte[] ke = Arrays.copyOfRange(keka, 0, keka.length / 2);
+            byte[] ka = Arrays.copyOfRange(keka, (keka.length / 2) + 1, keka.length - 1);
+            byte[] c = Arrays.copyOf(m, m.length);
+            keystream(ke, "SKE").xorOut(c, 0, c.length);
+            byte[] t = SHAKE.KMACXOF256(ka, m, 512, asciiStringToByteArray("SKA"));
+            return new Cryptogram(z, c, t);
+        } finally {
+            Metrics.end(timer);
         }
-        byte[] t = SHAKE.KMACXOF256(pw, m, 512, asciiStringToByteArray("T"));
-        return new Cryptogram(z, c, t);
     }
 
+    /**
+     * @return the plaintext of a passphrase cryptogram as UTF-8 text, or "" if the MAC does not verify
+     */
     public static String decryptSymmetric(Cryptogram cryptogram, byte[] pw) throws UnsupportedEncodingException {
-        byte[] z = cryptogram.getIV();
-        byte[] c = cryptogram.getCipherText();
-        byte[] t = cryptogram.getMAC();
-        byte[] keka = SHAKE.KMACXOF256(SHAKE.concat(z, pw), "".getBytes(), 1024, asciiStringToByteArray("S"));
+        byte[] m = decryptSymmetricBytes(cryptogram, pw);
+        return m != null ? new String(m, "UTF-8") : "";
+    }
+
+    /**
+     * @return the plaintext of a passphrase cryptogram, or null if the MAC does not verify
+     */
+    static byte[] decryptSymmetricBytes(Cryptogram cryptogram, byte[] pw) {
+        byte[] m = new byte[Math.toIntExact(cryptogram.getCipherLength())];
+        return decryptSymmetric(cryptogram, pw, ByteBuffer.wrap(m)) ? m : null;
+    }
+
+    /**
+     * Decrypt a passphrase cryptogram into dst (see open).
+     *
+     * @param dst receives getCipherLength() bytes at its position
+     * @return true iff the MAC verifies
+     */
+    public static boolean decryptSymmetric(Cryptogram cryptogram, byte[] pw, ByteBuffer dst) {
+        Metrics.Timer timer = Metrics.begin(Metrics.Op.DECRYPT);
+        try {
+            byte[] keka = SHAKE.KMACXOF256(SHAKE.concat(cryptogram.getIV(), pw), "".getBytes(), 1024, asciiStringToByteArray("S"));
+            return open(cryptogram, keka, "SKE", "SKA", dst);
+        } finally {
+            Metrics.end(timer);
+        }
+    }
+
+    /**
+     * Decrypt a passphrase cryptogram and write the plaintext to out, but only once the MAC has verified.
+     *
+     * @return true iff the MAC verifies; nothing is written otherwise
+     */
+    public static boolean decryptSymmetric(Cryptogram cryptogram, byte[] pw, WritableByteChannel out) throws IOException {
+        return write(decryptSymmetricBytes(cryptogram, pw), out);
+    }
+
+    /**
+     * Decrypt the ciphertext in place in dst and check the MAC, which is compared in constant time.
+     * If it fails, the bytes written are zeroed and dst's position is left unchanged, so no unauthenticated
+     * plaintext is ever handed back.
+     *
+     * @param keka the derived (ke || ka)
+     * @param E    keystream customization string
+     * @param A    MAC customization string
+     * @return true iff the MAC verifies, in which case dst's position is advanced past the plaintext
+     * @throws java.nio.BufferOverflowException if dst has less room than the ciphertext
+     */
+    private static boolean open(Cryptogram cryptogram, byte[] keka, String E, String A, ByteBuffer dst) {
         byte[] ke = Arrays.copyOfRange(keka, 0, keka.length / 2);
         byte[] ka = Arrays.copyOfRange(keka, (keka.length / 2) + 1, keka.length - 1);
-        byte[] m = SHAKE.KMACXOF256(ke, "".getBytes(), c.length * 8, asciiStringToByteArray("SKE"));
-        for (int i = 0; i < m.length; i++) {
-            m[i] ^= c[i];
+        int start = dst.position();
+        dst.put(cryptogram.getCipherTextBuffer());
+        ByteBuffer m = dst.duplicate();
+        m.flip().position(start);
+        keystream(ke, E).xorOut(m.duplicate());
+        SHAKE mac = new SHAKE();
+        mac.kinit256(ka, asciiStringToByteArray(A));
+        mac.update(m.duplicate());
+        mac.xof();
+        byte[] tPrime = new byte[64];
+        mac.out(tPrime, tPrime.length);
+        if (MessageDigest.isEqual(cryptogram.getMAC(), tPrime)) {
+            return true;
+        }
+        while (m.hasRemaining()) {
+            m.put((byte) 0);
+        }
+        dst.position(start);
+        return false;
+    }
+
+    /**
+     * Write all of m to out, unless m is null.
+     *
+     * @return m != null
+     */
+    private static boolean write(byte[] m, WritableByteChannel out) throws IOException {
+        if (m == null) {
+            return false;
         }
-        byte[] tPrime = SHAKE.KMACXOF256(ka, m, 512, asciiStringToByteArray("SKA"));
-        if (!Arrays.equals(t, tPrime)) {
-            return new String(m, "UTF-8");
+        ByteBuffer buf = ByteBuffer.wrap(m);
+        while (buf.hasRemaining()) {
+            out.write(buf);
         }
-        return "";
+        return true;
+    }
 
+    /**
+     * Encrypt a stream under a passphrase in constant memory, as a Cryptogram container.
+     * The ciphertext is written to out chunk by chunk while the keystream and the MAC
+     * are computed by open sponges, so it matches encrypt(m, pw) for the same IV.
+     * Reading, the MAC, the keystream and writing run concurrently (see Pipeline).
+     * Room for the header is left at the current position of out and filled in once the length is known.
+     *
+     * @param in  plaintext source
+     * @param out container sink
+     * @param pw  passphrase
+     * @return a cryptogram carrying the IV and MAC (the ciphertext itself went to out)
+     */
+    static Cryptogram encrypt(ReadableByteChannel in, FileChannel out, byte[] pw) throws IOException {
+        Metrics.Timer timer = Metrics.begin(Metrics.Op.ENCRYPT);
+        try {
+            byte[] z = randomByte();
+            Cryptogram header = new Cryptogram(z, null, null);
+            long start = out.position();
+            out.position(start + header.headerLength());
+            byte[] keka = SHAKE.KMACXOF256(SHAKE.concat(z, pw), "".getBytes(), 1024, asciiStringToByteArray("S"));
+            byte[] ke = Arrays.copyOfRange(keka, 0, keka.length / 2);
+            byte[] ka = Arrays.copyOfRange(keka, (keka.length / 2) + 1, keka.length - 1);
+            SHAKE ske = keystream(ke, "SKE");
+            SHAKE mac = new SHAKE();
+            mac.kinit256(ka, asciiStringToByteArray("SKA"));
+
+            long length = Pipeline.run(in, Long.MAX_VALUE, out,
+                    chunk -> mac.update(chunk.duplicate()), chunk -> ske.xorOut(chunk.duplicate()));
+            mac.xof();
+            byte[] t = new byte[64];
+            mac.out(t, t.length);
+            ByteBuffer tail = ByteBuffer.wrap(t);
+            while (tail.hasRemaining()) {
+                out.write(tail);
+            }
+            long end = out.position();
+            out.position(start);
+            header.writeHeader(out, length, t.length);
+            out.position(end);
+            return new Cryptogram(z, null, t);
+        } finally {
+            Metrics.end(timer);
+        }
     }
 
-    private static Point exponentiation(BigInteger x, Point G) {
-        Point Y = G;
-        for (int i = x.bitLength() - 1; i >= 0; i--) {
-            Y.doubling();
-            if (x.testBit(i)) {
-                Y.sum(G);
+    /**
+     * Decrypt a symmetric Cryptogram container in constant memory, writing no plaintext until the MAC has verified.
+     * The MAC is read first from the end of the container. A first pass over the ciphertext computes the
+     * expected MAC; only if it matches does a second pass decrypt the ciphertext again and write it to out.
+     * Since the MAC is taken over the plaintext, there is no way to authenticate before decrypting, so
+     * running the keystream twice is the price of releasing no unauthenticated plaintext.
+     * Each pass reads, decrypts, authenticates and writes concurrently (see Pipeline).
+     * <p>
+     * A shared lock is held on in across both passes, and the second pass recomputes the MAC as well.
+     * File locks are advisory, so a writer that ignores them can still change the file in between;
+     * that is then reported as an exception after the plaintext was written, and out must be discarded.
+     *
+     * @param in  container source, positioned at the container; it must not change during the call
+     * @param out plaintext sink
+     * @param pw  passphrase
+     * @return true iff the MAC verifies; nothing is written otherwise
+     * @throws IllegalArgumentException if the container is truncated or changed during the second pass
+     */
+    public static boolean decryptSymmetric(FileChannel in, WritableByteChannel out, byte[] pw) throws IOException {
+        FileLock lock = in.lock(0, Long.MAX_VALUE, true);
+        try {
+            return decryptLocked(in, out, pw);
+        } finally {
+            lock.release();
+        }
+    }
+
+    private static boolean decryptLocked(FileChannel in, WritableByteChannel out, byte[] pw) throws IOException {
+        Cryptogram header = Cryptogram.readHeader(in);
+        if (header.getMode() != Cryptogram.MODE_SYMMETRIC) {
+            throw new IllegalArgumentException("not a passphrase cryptogram");
+        }
+        long length = header.getCipherLength();
+        long cipherPosition = in.position();
+        ByteBuffer t = ByteBuffer.allocate(header.getMACLength());
+        while (t.hasRemaining()) {
+            if (in.read(t, cipherPosition + length + t.position()) < 0) {
+                throw new IllegalArgumentException("truncated cryptogram");
+            }
+        }
+        Metrics.Timer timer = Metrics.begin(Metrics.Op.DECRYPT);
+        try {
+            byte[] keka = SHAKE.KMACXOF256(SHAKE.concat(header.getIV(), pw), "".getBytes(), 1024, asciiStringToByteArray("S"));
+            byte[] ke = Arrays.copyOfRange(keka, 0, keka.length / 2);
+            byte[] ka = Arrays.copyOfRange(keka, (keka.length / 2) + 1, keka.length - 1);
+            SHAKE ske = keystream(ke, "SKE");
+            SHAKE mac = new SHAKE();
+            mac.kinit256(ka, asciiStringToByteArray("SKA"));
+            if (Pipeline.run(in, length, Pipeline.DISCARD,
+                    chunk -> ske.xorOut(chunk.duplicate()), chunk -> mac.update(chunk.duplicate())) != length) {
+                throw new IllegalArgumentException("truncated cryptogram");
             }
+            mac.xof();
+            byte[] tPrime = new byte[64];
+            mac.out(tPrime, tPrime.length);
+            if (!MessageDigest.isEqual(t.array(), tPrime)) {
+                return false;
+            }
+            in.position(cipherPosition);
+            SHAKE plain = keystream(ke, "SKE");
+            SHAKE check = new SHAKE();
+            check.kinit256(ka, asciiStringToByteArray("SKA"));
+            if (Pipeline.run(in, length, out,
+                    chunk -> plain.xorOut(chunk.duplicate()), chunk -> check.update(chunk.duplicate())) != length) {
+                throw new IllegalArgumentException("cryptogram changed while it was decrypted");
+            }
+            check.xof();
+            check.out(tPrime, tPrime.length);
+            if (!MessageDigest.isEqual(t.array(), tPrime)) {
+                throw new IllegalArgumentException("cryptogram changed while it was decrypted");
+            }
+            return true;
+        } finally {
+            Metrics.end(timer);
         }
+    }
 
-        return Y;
+    /**
+     * Authenticate and decrypt bytes [offset, offset + count) of a segmented cryptogram,
+     * reading only the segments that hold them (see SegmentedCryptogram).
+     *
+     * @param in  container source, positioned at the container
+     * @param out plaintext sink
+     * @param pw  passphrase
+     * @return the number of bytes written (count, clipped to the end of the plaintext)
+     * @throws IllegalArgumentException if a segment involved fails its tag
+     */
+    public static long decryptSymmetric(FileChannel in, long offset, long count, WritableByteChannel out, byte[] pw) throws IOException {
+        Metrics.Timer timer = Metrics.begin(Metrics.Op.DECRYPT);
+        try {
+            return SegmentedCryptogram.open(in, pw).decrypt(offset, count, out);
+        } finally {
+            Metrics.end(timer);
+        }
+    }
+
+    /**
+     * Open the KMACXOF256 keystream sponge for key ke and customization string S, ready for squeezing.
+     *
+     * @param ke encryption key
+     * @param S  customization string ("SKE" or "PKE")
+     * @return a sponge whose output is KMACXOF256(ke, "", *, S)
+     */
+    private static SHAKE keystream(byte[] ke, String S) {
+        SHAKE shake = new SHAKE();
+        shake.kinit256(ke, asciiStringToByteArray(S));
+        shake.xof();
+        return shake;
     }
 
     private static void generateKeyPair(byte[] pw) throws IOException {
-        Point G = new Point(BigInteger.valueOf(18), false);
         BigInteger s = new BigInteger(SHAKE.KMACXOF256(pw, "".getBytes(),
                 512, "K".getBytes())).multiply(BigInteger.valueOf(4)).abs();
 
-        Point V = exponentiation(s, G);
-        Files.write(Paths.get("PublicX.txt"), V.getX().toByteArray());
-        Files.write(Paths.get("PublicY.txt"), V.getY().toByteArray());
+        Point V = Point.multiplyG(s);
+        Files.write(Paths.get("Public.txt"), V.toBytes());
 
-        Cryptogram crypt = encrypt(s.toByteArray(), pw);
-
-        Files.write(Paths.get("IV.txt"), crypt.getIV());
-        Files.write(Paths.get("ciphertext.txt"), crypt.getCipherText());
-        Files.write(Paths.get("MAC.txt"), crypt.getMAC());
+        writeCryptogram(Paths.get("Private.cgm"), encrypt(s.toByteArray(), pw));
+    }
 
+    /**
+     * Derive the public keys of many passphrases, normalizing them all with a single inversion.
+     *
+     * @param pw the passphrases
+     * @return the public key V = s*G of each passphrase, in order
+     */
+    static Point[] generatePublicKeys(byte[][] pw) {
+        byte[][] empty = new byte[pw.length][0];
+        byte[][] sBytes = SHAKE.KMACXOF256SharedPrefix(pw, empty, 512, "K".getBytes());
+        Point[] V = new Point[pw.length];
+        for (int i = 0; i < pw.length; i++) {
+            V[i] = Point.multiplyG(new BigInteger(sBytes[i]).multiply(BigInteger.valueOf(4)).abs());
+        }
+        Point.normalize(V);
+        return V;
     }
 
     private static void generateSignature(byte[] m, byte[] pw) throws IOException {
-        BigInteger s = new BigInteger(SHAKE.KMACXOF256(pw, "".getBytes(), 512, "K".getBytes())).multiply(BigInteger.valueOf(4));
-        BigInteger k = new BigInteger(SHAKE.KMACXOF256(s.toByteArray(), m, 512, "N".getBytes()));
-        Point G = new Point(BigInteger.valueOf(18), false);
-        Point U = exponentiation(k, G);
-        BigInteger h = new BigInteger(SHAKE.KMACXOF256(U.getX().toByteArray(), m, 512, "T".getBytes()));
-        BigInteger r = BigInteger.valueOf(2).pow(519).subtract(new BigInteger("337554763258501705789107630418782636071904961214051226618635150085779108655765"));
-        BigInteger z = k.subtract(h.multiply(s)).mod(r);
-        Files.write(Paths.get("signature.txt"), h.toByteArray());
-        Files.write(Paths.get("signature.txt"), z.toByteArray(), StandardOpenOption.APPEND);
+        Files.write(Paths.get("signature.txt"), sign(m, pw));
         System.out.println("Signature written to signature.txt.");
     }
 
+    /**
+     * @return the signature h || z of m under the key pair of pw, in the fixed-length signature.txt format
+     */
+    static byte[] sign(byte[] m, byte[] pw) {
+        Metrics.Timer timer = Metrics.begin(Metrics.Op.SIGN);
+        try {
+            BigInteger s = new BigInteger(SHAKE.KMACXOF256(pw, "".getBytes(), 512, "K".getBytes())).multiply(BigInteger.valueOf(4)).abs();
+            BigInteger k = new BigInteger(SHAKE.KMACXOF256(s.toByteArray(), m, 512, "N".getBytes()));
+            Point U = Point.multiplyG(k);
+            byte[] hBytes = SHAKE.KMACXOF256(U.getX().toByteArray(), m, 512, "T".getBytes());
+            BigInteger h = new BigInteger(hBytes);
+            BigInteger r = Point.r;
+            BigInteger z = k.subtract(h.multiply(s)).mod(r);
+            // fixed-length encoding, so that verification can split h from z
+            return SHAKE.concat(hBytes, toFixedBytes(z, SIG_Z_LENGTH));
+        } finally {
+            Metrics.end(timer);
+        }
+    }
+
+    /**
+     * Verify a signature (h, z) on m under the public key V, by checking that h = KMACXOF256(U.x, m, 512, "T")
+     * for U = z*G + h*V, computed with a single double-scalar multiplication.
+     *
+     * @param m   the signed message
+     * @param sig the signature, as written by generateSignature
+     * @param V   the signer's public key
+     * @return true iff the signature is valid
+     */
+    static boolean verifySignature(byte[] m, byte[] sig, Point V) {
+        Metrics.Timer timer = Metrics.begin(Metrics.Op.VERIFY);
+        try {
+            if (sig.length != SIG_H_LENGTH + SIG_Z_LENGTH) {
+                return false;
+            }
+            byte[] hBytes = Arrays.copyOfRange(sig, 0, SIG_H_LENGTH);
+            BigInteger z = new BigInteger(1, Arrays.copyOfRange(sig, SIG_H_LENGTH, sig.length));
+            Point U = Point.multiplyG(z, new BigInteger(hBytes), V);
+            return MessageDigest.isEqual(hBytes, SHAKE.KMACXOF256(U.getX().toByteArray(), m, 512, "T".getBytes()));
+        } finally {
+            Metrics.end(timer);
+        }
+    }
+
+    /**
+     * Verify many (message, signature, public key) tuples.
+     * Since a signature carries h rather than U, every U must be recomputed, each with one double-scalar
+     * multiplication; the U points are then normalized together with a single inversion,
+     * and the KMAC checks of all tuples share the absorption of their prefix block.
+     *
+     * @param m   the signed messages
+     * @param sig the signatures, as written by generateSignature
+     * @param V   the signers' public keys
+     * @return the validity of each tuple, in order
+     */
+    static boolean[] verifySignatures(byte[][] m, byte[][] sig, Point[] V) {
+        if (m.length != sig.length || m.length != V.length) {
+            throw new IllegalArgumentException("Expected one signature and one public key per message");
+        }
+        boolean[] valid = new boolean[m.length];
+        Point[] U = new Point[m.length];
+        for (int i = 0; i < m.length; i++) {
+            valid[i] = sig[i].length == SIG_H_LENGTH + SIG_Z_LENGTH;
+            if (valid[i]) {
+                BigInteger z = new BigInteger(1, Arrays.copyOfRange(sig[i], SIG_H_LENGTH, sig[i].length));
+                U[i] = Point.multiplyG(z, new BigInteger(Arrays.copyOfRange(sig[i], 0, SIG_H_LENGTH)), V[i]);
+            } else {
+                U[i] = new Point();
+            }
+        }
+        Point.normalize(U);
+        byte[][] keys = new byte[m.length][];
+        for (int i = 0; i < m.length; i++) {
+            keys[i] = U[i].getX().toByteArray();
+        }
+        byte[][] h = SHAKE.KMACXOF256SharedPrefix(keys, m, 512, "T".getBytes());
+        for (int i = 0; i < m.length; i++) {
+            valid[i] &= MessageDigest.isEqual(h[i], Arrays.copyOfRange(sig[i], 0, Math.min(SIG_H_LENGTH, sig[i].length)));
+        }
+        return valid;
+    }
+
+    /**
+     * Encode a non-negative integer as exactly len big-endian bytes.
+     */
+    private static byte[] toFixedBytes(BigInteger x, int len) {
+        byte[] raw = x.toByteArray();
+        byte[] val = new byte[len];
+        int n = Math.min(raw.length, len); // drops the sign byte toByteArray may prepend
+        System.arraycopy(raw, raw.length - n, val, len - n, n);
+        return val;
+    }
+
+    /**
+     * Write a cryptogram as a single container file, with one open and one gathering write.
+     */
+    private static void writeCryptogram(Path path, Cryptogram gram) throws IOException {
+        ByteBuffer buf = gram.serialize();
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+        }
+    }
+
+    /**
+     * Read a cryptogram container file. The file is mapped, so the ciphertext is not copied onto the heap
+     * until it is decrypted.
+     */
+    private static Cryptogram readCryptogram(Path path) throws IOException {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            return Cryptogram.deserialize(in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()));
+        }
+    }
+
+    /**
+     * Print a decrypted message to stdout as raw bytes, so binary messages survive.
+     */
+    private static void printMessage(byte[] m) {
+        System.out.print("Decrypted Message is: ");
+        System.out.write(m, 0, m.length);
+        System.out.println();
+    }
+
+    /**
+     * @return the argument following the given option (searched after the positional arguments), or dflt
+     */
+    private static String option(String[] args, String name, String dflt) {
+        for (int i = 3; i + 1 < args.length; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return dflt;
+    }
+
     private static byte[] readFile(File theFile) throws IOException {
-        byte[] byteArr;
-        if (theFile.exists() && theFile.isFile()) {
-            byteArr = Files.readAllBytes(theFile.toPath());
-        } else {
+        checkFile(theFile);
+        return Files.readAllBytes(theFile.toPath());
+    }
+
+    private static void checkFile(File theFile) {
+        if (!(theFile.exists() && theFile.isFile())) {
             if (!theFile.isFile()) {
                 throw new IllegalArgumentException("File input must be a file.");
             } else {
                 throw new IllegalArgumentException("File name not found.");
             }
         }
-
-        return byteArr;
     }
 
     public static void main(String[] args) throws IOException {
         switch (args[0]) {
             case "-hash":
                 if (args[1].equals("-f") && args[2] != null) {
-                    String h = hash(readFile(new File(args[2])));
+                    String h = hash(new File(args[2]));
                     System.out.println(h);
                     break;
 
+                } else if (args[1].equals("-pf") && args[2] != null) {
+                    System.out.println(hashParallel(new File(args[2])));
+                    break;
                 } else if (args[1].equals("-m") && args[2] != null) {
                     System.out.println(hash(asciiStringToByteArray(args[2])));
                     break;
+                } else if ((args[1].equals("-dir") || args[1].equals("-manifest")) && args[2] != null) {
+                    BulkRunner.hash(Paths.get(args[2]));
+                    break;
                 } else {
                     throw new IllegalArgumentException("Please provide appropriate input");
                 }
             case "-gen":
                 if (args[1].equals("-pw") && args[2] != null) {
                     generateKeyPair(asciiStringToByteArray(args[2]));
-                    System.out.println("Outputted public key to PublicX and PublicY.txt");
-                    System.out.println("Outputted private key to IV.txt, MAC.txt, ciphertext.txt");
+                    System.out.println("Outputted public key to Public.txt");
+                    System.out.println("Outputted private key to Private.cgm");
                     break;
                 } else {
                     throw new IllegalArgumentException("Please provide appropriate input");
@@ -470,75 +1107,164 @@ public class Main {
                 }
 
 
+            case "-verify":
+                if (args[1].equals("-m") && args[2] != null) {
+                    Point V = Point.fromBytes(Files.readAllBytes(Paths.get("Public.txt")));
+                    byte[] sig = Files.readAllBytes(Paths.get("signature.txt"));
+                    boolean valid = verifySignature(args[2].getBytes(), sig, V);
+                    System.out.println(valid ? "Signature is valid." : "Signature is NOT valid.");
+                    break;
+                } else {
+                    throw new IllegalArgumentException("Please provide appropriate input");
+                }
             case "-enc":
                 if (args[1].equals("-f") && args[2] != null) {
                     if (args[3].equals("-pw") && args[4] != null) {
-                        Cryptogram gram = encrypt(readFile((new File(args[2]))), asciiStringToByteArray(args[4]));
-
-                        Files.write(Paths.get("IV.txt"), gram.getIV());
-                        Files.write(Paths.get("ciphertext.txt"), gram.getCipherText());
-                        Files.write(Paths.get("MAC.txt"), gram.getMAC());
+                        File theFile = new File(args[2]);
+                        checkFile(theFile);
+                        Path outPath = Paths.get(option(args, "-o", DEFAULT_CRYPTOGRAM));
+                        String segment = option(args, "-seg", null);
+                        try (FileChannel in = FileChannel.open(theFile.toPath(), StandardOpenOption.READ);
+                             FileChannel out = FileChannel.open(outPath, StandardOpenOption.CREATE,
+                                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                            if (segment != null) {
+                                SegmentedCryptogram.encrypt(in, out, asciiStringToByteArray(args[4]), Integer.parseInt(segment));
+                            } else {
+                                encrypt(in, out, asciiStringToByteArray(args[4]));
+                            }
+                        }
+                        System.out.println("Cryptogram written to " + outPath + ".");
                         break;
 
                     }
+                } else if ((args[1].equals("-dir") || args[1].equals("-manifest")) && args[2] != null) {
+                    if (args[3].equals("-pw") && args[4] != null) {
+                        String outDir = option(args, "-o", null);
+                        BulkRunner.encrypt(Paths.get(args[2]), outDir == null ? null : Paths.get(outDir), asciiStringToByteArray(args[4]));
+                        break;
+                    }
                 } else if (args[1].equals("-m") && args[2] != null) {
+                    Path outPath = Paths.get(option(args, "-o", DEFAULT_CRYPTOGRAM));
                     if (args[3].equals("-k")) {
-                        BigInteger x = new BigInteger(Files.readAllBytes(Paths.get("PublicX.txt")));
-                        BigInteger y = new BigInteger(Files.readAllBytes(Paths.get("PublicY.txt")));
-                        Point publicKey = new Point(x, y);
-                        Cryptogram gram = encrypt(args[2].getBytes(), publicKey);
-
-                        Files.write(Paths.get("PublicY.txt"), gram.getPoint().getY().toByteArray());
-                        Files.write(Paths.get("PublicX.txt"), gram.getPoint().getX().toByteArray());
-                        Files.write(Paths.get("ciphertext.txt"), gram.getCipherText());
-                        Files.write(Paths.get("MAC.txt"), gram.getMAC());
+                        Point publicKey = Point.fromBytes(Files.readAllBytes(Paths.get("Public.txt")));
+                        writeCryptogram(outPath, encrypt(args[2].getBytes(), publicKey));
+                        System.out.println("Cryptogram written to " + outPath + ".");
                         break;
                     }
                     if (args[3].equals("-pw") && args[4] != null) {
-                        Cryptogram gram = encrypt(asciiStringToByteArray(args[2]), asciiStringToByteArray(args[4]));
-
-                        Files.write(Paths.get("IV.txt"), gram.getIV());
-                        Files.write(Paths.get("ciphertext.txt"), gram.getCipherText());
-                        Files.write(Paths.get("MAC.txt"), gram.getMAC());
+                        writeCryptogram(outPath, encrypt(asciiStringToByteArray(args[2]), asciiStringToByteArray(args[4])));
+                        System.out.println("Cryptogram written to " + outPath + ".");
                         break;
                     }
                 }
-                else {
-                    throw new IllegalArgumentException("Please provide appropriate input");
-                }
+                throw new IllegalArgumentException("Please provide appropriate input");
             case "-dec":
                 if (args[1].equals("-pw")) {
-
-                    byte[] IV;
-                    byte[] cText;
-                    byte[] MAC;
-
-                    IV = Files.readAllBytes(Paths.get("IV.txt"));
-                    cText = Files.readAllBytes(Paths.get("ciphertext.txt"));
-                    MAC = Files.readAllBytes(Paths.get("MAC.txt"));
-                    Cryptogram gram = new Cryptogram(IV, cText, MAC);
-                    System.out.println("Decrypted Message is: " + decryptSymmetric(gram, asciiStringToByteArray(args[2])));
+                    Path inPath = Paths.get(option(args, "-i", DEFAULT_CRYPTOGRAM));
+                    String outFile = option(args, "-o", null);
+                    String range = option(args, "-range", null);
+                    boolean segmented;
+                    try (FileChannel in = FileChannel.open(inPath, StandardOpenOption.READ)) {
+                        segmented = Cryptogram.readHeader(in).getMode() == Cryptogram.MODE_SEGMENTED;
+                    }
+                    if (segmented) {
+                        long offset = 0;
+                        long count = Long.MAX_VALUE;
+                        if (range != null) {
+                            String[] r = range.split(":");
+                            offset = Long.parseLong(r[0]);
+                            count = Long.parseLong(r[1]);
+                        }
+                        if (outFile == null) {
+                            try (FileChannel in = FileChannel.open(inPath, StandardOpenOption.READ)) {
+                                decryptSymmetric(in, offset, count, Channels.newChannel(System.out), asciiStringToByteArray(args[2]));
+                            }
+                            System.out.flush();
+                            break;
+                        }
+                        Path outPath = Paths.get(outFile);
+                        try (FileChannel in = FileChannel.open(inPath, StandardOpenOption.READ);
+                             FileChannel out = FileChannel.open(outPath, StandardOpenOption.CREATE,
+                                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                            decryptSymmetric(in, offset, count, out, asciiStringToByteArray(args[2]));
+                        } catch (IllegalArgumentException e) {
+                            Files.delete(outPath);
+                            throw e;
+                        }
+                        System.out.println("Decrypted bytes written to " + outPath + ".");
+                        break;
+                    }
+                    if (range != null) {
+                        throw new IllegalArgumentException("-range needs a segmented cryptogram (-enc -f <file> -pw <pw> -seg <size>)");
+                    }
+                    if (outFile != null) {
+                        Path outPath = Paths.get(outFile);
+                        boolean valid;
+                        try (FileChannel in = FileChannel.open(inPath, StandardOpenOption.READ);
+                             FileChannel out = FileChannel.open(outPath, StandardOpenOption.CREATE,
+                                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                            valid = decryptSymmetric(in, out, asciiStringToByteArray(args[2]));
+                        }
+                        if (!valid) {
+                            Files.delete(outPath);
+                            throw new IllegalArgumentException("MAC verification failed");
+                        }
+                        System.out.println("Decrypted message written to " + outPath + ".");
+                        break;
+                    }
+                    Cryptogram gram = readCryptogram(inPath);
+                    if (gram.getMode() != Cryptogram.MODE_SYMMETRIC) {
+                        throw new IllegalArgumentException("not a passphrase cryptogram");
+                    }
+                    byte[] m = decryptSymmetricBytes(gram, asciiStringToByteArray(args[2]));
+                    if (m == null) {
+                        throw new IllegalArgumentException("MAC verification failed");
+                    }
+                    printMessage(m);
                     break;
                 } else {
                     throw new IllegalArgumentException("Please provide appropriate input");
                 }
             case "-kdec":
                 if (args[1].equals("-pw")) {
-
-                    byte[] cText;
-                    byte[] MAC;
-
-                    BigInteger x = new BigInteger(Files.readAllBytes(Paths.get("PublicX.txt")));
-                    BigInteger y = new BigInteger(Files.readAllBytes(Paths.get("PublicY.txt")));
-                    Point Z = new Point (x, y);
-                    cText = Files.readAllBytes(Paths.get("ciphertext.txt"));
-                    MAC = Files.readAllBytes(Paths.get("MAC.txt"));
-                    Cryptogram gram = new Cryptogram(Z, cText, MAC);
-                    System.out.println("Decrypted Message is: " + decrypt(gram, asciiStringToByteArray(args[2])));
+                    Cryptogram gram = readCryptogram(Paths.get(option(args, "-i", DEFAULT_CRYPTOGRAM)));
+                    if (gram.getMode() != Cryptogram.MODE_PUBLIC_KEY) {
+                        throw new IllegalArgumentException("not a public-key cryptogram");
+                    }
+                    String outFile = option(args, "-o", null);
+                    if (outFile != null) {
+                        Path outPath = Paths.get(outFile);
+                        try (FileChannel out = FileChannel.open(outPath, StandardOpenOption.CREATE,
+                                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                            if (!decrypt(gram, asciiStringToByteArray(args[2]), out)) {
+                                throw new IllegalArgumentException("MAC verification failed");
+                            }
+                        } catch (IllegalArgumentException e) {
+                            Files.delete(outPath);
+                            throw e;
+                        }
+                        System.out.println("Decrypted message written to " + outPath + ".");
+                        break;
+                    }
+                    byte[] m = decryptBytes(gram, asciiStringToByteArray(args[2]));
+                    if (m == null) {
+                        throw new IllegalArgumentException("MAC verification failed");
+                    }
+                    printMessage(m);
                     break;
                 } else {
                     throw new IllegalArgumentException("Please provide appropriate input");
                 }
+            case "-serve":
+                if (args.length > 2 && args[1].equals("-socket")) {
+                    System.out.println("Serving on " + args[2]);
+                    CryptoDaemon.serveUnix(args[2]);
+                } else {
+                    int port = args.length > 2 && args[1].equals("-port") ? Integer.parseInt(args[2]) : CryptoDaemon.DEFAULT_PORT;
+                    System.out.println("Serving on 127.0.0.1:" + port);
+                    CryptoDaemon.serveTcp(port);
+                }
+                break;
             default:
                 throw new IllegalArgumentException("Please provide appropriate input");
         }
@@ -549,6 +1275,8 @@ public class Main {
 //
 //        test_cshake256();
 //        test_kmacxof256();
+//        test_tuplehash256();
+//        test_parallelhash256();
 //
     }
 
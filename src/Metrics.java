@@ -0,0 +1,201 @@
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hot-path counters, per-operation latency histograms and JFR events, enabled at startup with
+ * -Dcrypto.metrics=true. ENABLED is a static final, so when it is false the JIT folds every
+ * instrumentation point away and the disabled build runs the same code as an uninstrumented one.
+ * When enabled, a report is printed to stderr at exit (and served by the daemon's STATS request).
+ * <p>
+ * The JFR event type "crypto.Operation" is defined through jdk.jfr.EventFactory (JDK 12 and later),
+ * looked up reflectively since the sources target JDK 9; on older JDKs only the counters and histograms run.
+ *
+ * @author Brandon Gaetaniello
+ * @author Arwain Karlin
+ */
+public final class Metrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("crypto.metrics");
+
+    public static final LongAdder KECCAKF = new LongAdder(); // Keccak-f[1600] permutations
+    public static final LongAdder ABSORBED = new LongAdder(); // bytes passed to SHAKE.update
+    public static final LongAdder POINT_SUM = new LongAdder();
+    public static final LongAdder POINT_DOUBLING = new LongAdder();
+    public static final LongAdder INVERSIONS = new LongAdder(); // field inversions (Fp521.invert)
+
+    /**
+     * Top-level operations, each with its latency histogram.
+     */
+    public enum Op {
+        HASH, ENCRYPT, DECRYPT, ENCRYPT_PK, DECRYPT_PK, SIGN, VERIFY;
+
+        final Histogram latency = new Histogram();
+    }
+
+    static {
+        if (ENABLED) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(report())));
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Start timing an operation.
+     *
+     * @return a timer for end, or null when metrics are disabled
+     */
+    public static Timer begin(Op op) {
+        return ENABLED ? new Timer(op) : null;
+    }
+
+    /**
+     * Stop timing an operation: record its latency and commit its JFR event.
+     *
+     * @param timer the result of begin (null is ignored)
+     */
+    public static void end(Timer timer) {
+        if (ENABLED && timer != null) {
+            timer.op.latency.record(System.nanoTime() - timer.start);
+            Jfr.commit(timer.event);
+        }
+    }
+
+    /**
+     * @return the counters and, for every operation that ran, count, mean and approximate percentiles
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("keccakf %d, absorbed %d bytes, point sums %d, doublings %d, inversions %d%n",
+                KECCAKF.sum(), ABSORBED.sum(), POINT_SUM.sum(), POINT_DOUBLING.sum(), INVERSIONS.sum()));
+        for (Op op : Op.values()) {
+            Histogram h = op.latency;
+            long n = h.count.sum();
+            if (n > 0) {
+                sb.append(String.format("%-10s n=%d mean=%.1fus p50<%dus p90<%dus p99<%dus%n", op, n,
+                        h.total.sum() / 1e3 / n, h.percentile(0.50) / 1000, h.percentile(0.90) / 1000,
+                        h.percentile(0.99) / 1000));
+            }
+        }
+        return sb.toString();
+    }
+
+    public static final class Timer {
+        private final Op op;
+        private final long start = System.nanoTime();
+        private final Object event;
+
+        private Timer(Op op) {
+            this.op = op;
+            this.event = Jfr.begin(op);
+        }
+    }
+
+    /**
+     * Latencies in power-of-two nanosecond buckets: bucket i counts durations in [2^(i-1), 2^i).
+     */
+    static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            buckets[64 - Long.numberOfLeadingZeros(Math.max(nanos, 0))].increment();
+            count.increment();
+            total.add(nanos);
+        }
+
+        /**
+         * @return the upper bound, in nanoseconds, of the bucket holding the q-quantile
+         */
+        long percentile(double q) {
+            long[] n = new long[buckets.length];
+            long all = 0;
+            for (int i = 0; i < n.length; i++) {
+                all += n[i] = buckets[i].sum();
+            }
+            long seen = 0;
+            for (int i = 0; i < n.length; i++) {
+                seen += n[i];
+                if (seen >= q * all) {
+                    return i < 63 ? 1L << i : Long.MAX_VALUE;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * The dynamically defined JFR event type, or nothing if the JDK has no jdk.jfr.EventFactory.
+     */
+    private static final class Jfr {
+        private static final Object FACTORY;
+        private static final Method NEW_EVENT, SET, BEGIN, COMMIT;
+
+        static {
+            Object factory = null;
+            Method newEvent = null, set = null, begin = null, commit = null;
+            try {
+                Class<?> element = Class.forName("jdk.jfr.AnnotationElement");
+                Constructor<?> annotation = element.getConstructor(Class.class, Object.class);
+                List<Object> annotations = new ArrayList<>();
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), "crypto.Operation"));
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), "Crypto Operation"));
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[]{"Crypto"}));
+                Class<?> descriptor = Class.forName("jdk.jfr.ValueDescriptor");
+                Object operation = descriptor.getConstructor(Class.class, String.class).newInstance(String.class, "operation");
+                Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+                factory = factoryClass.getMethod("create", List.class, List.class)
+                        .invoke(null, annotations, Collections.singletonList(operation));
+                newEvent = factoryClass.getMethod("newEvent");
+                Class<?> event = Class.forName("jdk.jfr.Event");
+                set = event.getMethod("set", int.class, Object.class);
+                begin = event.getMethod("begin");
+                commit = event.getMethod("commit");
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                factory = null; // JDK 11 or older: no dynamic events
+            }
+            FACTORY = factory;
+            NEW_EVENT = newEvent;
+            SET = set;
+            BEGIN = begin;
+            COMMIT = commit;
+        }
+
+        static Object begin(Op op) {
+            if (FACTORY == null) {
+                return null;
+            }
+            try {
+                Object event = NEW_EVENT.invoke(FACTORY);
+                SET.invoke(event, 0, op.name());
+                BEGIN.invoke(event);
+                return event;
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+
+        static void commit(Object event) {
+            if (event != null) {
+                try {
+                    COMMIT.invoke(event); // also ends the event, and is a no-op when no recording wants it
+                } catch (ReflectiveOperationException e) {
+                    // drop the event
+                }
+            }
+        }
+    }
+
+}
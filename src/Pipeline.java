@@ -0,0 +1,265 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pipelined streaming for the file encryption and decryption paths: a reader thread, one thread per stage
+ * and a writer thread pass a ring of direct buffers along bounded queues, so the disk reads, each sponge
+ * (the keystream and the MAC are independent) and the disk writes all run at the same time.
+ * Chunks go through every stage and reach the output in input order; the ring is the only memory used.
+ * <p>
+ * Inputs that fit in one chunk are processed on the calling thread, since handing a single chunk
+ * between threads costs more than it overlaps.
+ *
+ * @author Brandon Gaetaniello
+ * @author Arwain Karlin
+ */
+final class Pipeline {
+
+    static final int CHUNK_SIZE = 1 << 20; // bytes per ring buffer
+    private static final int RING_SIZE = 8;
+    private static final int IDLE_RINGS = 2; // rings kept for reuse between runs
+    private static final int IDLE_CHUNKS = 2 * Runtime.getRuntime().availableProcessors(); // single buffers kept, one per bulk-mode file in flight
+    private static final ByteBuffer END = ByteBuffer.allocate(0); // follows the last chunk down the pipeline
+
+    /**
+     * A sink that drops every chunk, for passes that only compute over the data.
+     */
+    static final WritableByteChannel DISCARD = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private static final ConcurrentLinkedQueue<ByteBuffer[]> RINGS = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<ByteBuffer> CHUNKS = new ConcurrentLinkedQueue<>();
+    private static final ExecutorService THREADS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "crypto-pipeline");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Work done on each chunk, in order, by one thread.
+     */
+    interface Stage {
+        /**
+         * @param chunk the bytes between position and limit; the stage may change them in place,
+         *              and must leave position and limit as it found them
+         */
+        void accept(ByteBuffer chunk) throws IOException;
+    }
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    // queues.get(0) holds free buffers; queues.get(i + 1) feeds stage i, and the last one feeds the writer
+    private final List<BlockingQueue<ByteBuffer>> queues = new ArrayList<>();
+
+    private Pipeline() {
+    }
+
+    /**
+     * Read up to limit bytes (or to the end of in), pass them through the stages in order and write them to out.
+     *
+     * @return the number of bytes read, which is less than limit only if in ended first
+     * @throws IOException              from in, out or a stage, whichever failed first
+     * @throws IllegalArgumentException from a stage
+     */
+    static long run(ReadableByteChannel in, long limit, WritableByteChannel out, Stage... stages) throws IOException {
+        if (limit <= CHUNK_SIZE || in instanceof FileChannel
+                && ((FileChannel) in).size() - ((FileChannel) in).position() <= CHUNK_SIZE) {
+            ByteBuffer chunk = CHUNKS.poll();
+            if (chunk == null) {
+                chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            }
+            try {
+                return serial(in, limit, out, chunk, stages);
+            } finally {
+                if (CHUNKS.size() < IDLE_CHUNKS) {
+                    CHUNKS.offer(chunk);
+                }
+            }
+        }
+        ByteBuffer[] ring = RINGS.poll();
+        if (ring == null) {
+            ring = new ByteBuffer[RING_SIZE];
+            for (int i = 0; i < ring.length; i++) {
+                ring[i] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            }
+        }
+        try {
+            return new Pipeline().parallel(in, limit, out, ring, stages);
+        } finally {
+            if (RINGS.size() < IDLE_RINGS) {
+                RINGS.offer(ring);
+            }
+        }
+    }
+
+    private static long serial(ReadableByteChannel in, long limit, WritableByteChannel out, ByteBuffer chunk, Stage[] stages) throws IOException {
+        long total = 0;
+        while (total < limit) {
+            chunk.clear();
+            chunk.limit((int) Math.min(CHUNK_SIZE, limit - total));
+            if (!fill(in, chunk)) {
+                break;
+            }
+            total += chunk.remaining();
+            for (Stage stage : stages) {
+                stage.accept(chunk);
+            }
+            drain(chunk, out);
+        }
+        return total;
+    }
+
+    private long parallel(ReadableByteChannel in, long limit, WritableByteChannel out, ByteBuffer[] ring, Stage[] stages) throws IOException {
+        for (int i = 0; i < stages.length + 2; i++) {
+            queues.add(new ArrayBlockingQueue<>(ring.length + 2)); // the ring, the END of a normal finish and that of fail
+        }
+        for (ByteBuffer b : ring) {
+            queues.get(0).add(b);
+        }
+        CountDownLatch finished = new CountDownLatch(stages.length + 2);
+        long[] total = new long[1];
+
+        submit(finished, () -> {
+            ByteBuffer chunk;
+            while (total[0] < limit && (chunk = take(queues.get(0))) != null) {
+                chunk.clear();
+                chunk.limit((int) Math.min(CHUNK_SIZE, limit - total[0]));
+                if (!fill(in, chunk)) {
+                    break;
+                }
+                total[0] += chunk.remaining();
+                queues.get(1).add(chunk);
+            }
+            queues.get(1).add(END);
+        });
+        for (int i = 0; i < stages.length; i++) {
+            Stage stage = stages[i];
+            BlockingQueue<ByteBuffer> from = queues.get(i + 1);
+            BlockingQueue<ByteBuffer> to = queues.get(i + 2);
+            submit(finished, () -> {
+                ByteBuffer chunk;
+                while ((chunk = take(from)) != null) {
+                    stage.accept(chunk);
+                    to.add(chunk);
+                }
+                to.add(END);
+            });
+        }
+        submit(finished, () -> {
+            ByteBuffer chunk;
+            while ((chunk = take(queues.get(queues.size() - 1))) != null) {
+                drain(chunk, out);
+                queues.get(0).add(chunk);
+            }
+        });
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                finished.await();
+                break;
+            } catch (InterruptedException e) {
+                fail(new InterruptedIOException("pipeline interrupted"));
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        Throwable e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return total[0]; // published by the latch
+    }
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    private void submit(CountDownLatch finished, Task task) {
+        THREADS.execute(() -> {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                fail(e);
+            } finally {
+                finished.countDown();
+            }
+        });
+    }
+
+    /**
+     * Record the first failure and wake every thread waiting on a queue.
+     */
+    private void fail(Throwable e) {
+        if (failure.compareAndSet(null, e)) {
+            for (BlockingQueue<ByteBuffer> queue : queues) {
+                queue.offer(END);
+            }
+        }
+    }
+
+    /**
+     * @return the next buffer, or null at END or once any thread has failed
+     */
+    private ByteBuffer take(BlockingQueue<ByteBuffer> queue) throws InterruptedIOException {
+        try {
+            ByteBuffer b = queue.take();
+            return b == END || failure.get() != null ? null : b;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("pipeline interrupted");
+        }
+    }
+
+    /**
+     * Fill the buffer up to its limit or the end of the channel, and flip it.
+     *
+     * @return false if nothing was read
+     */
+    private static boolean fill(ReadableByteChannel in, ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining() && in.read(chunk) >= 0) {
+            // keep reading
+        }
+        chunk.flip();
+        return chunk.hasRemaining();
+    }
+
+    private static void drain(ByteBuffer chunk, WritableByteChannel out) throws IOException {
+        while (chunk.hasRemaining()) {
+            out.write(chunk);
+        }
+    }
+
+}
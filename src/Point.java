@@ -1,71 +1,431 @@
 import java.math.BigInteger;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 public class Point {
 
     public static BigInteger myP = BigInteger.valueOf(2).pow(521).subtract(BigInteger.ONE);
     public static BigInteger E_521;
     public static BigInteger d = BigInteger.valueOf(-376014);
-    private BigInteger myX;
-    private BigInteger myY;
+    public static BigInteger r = BigInteger.valueOf(2).pow(519).subtract(new BigInteger("337554763258501705789107630418782636071904961214051226618635150085779108655765"));
+    private static final Fp521 dFp = Fp521.valueOf(d);
+    // scratch field elements for sum and doubling, per thread so that table entries do not carry them
+    private static final ThreadLocal<Fp521[]> SCRATCH = ThreadLocal.withInitial(() -> {
+        Fp521[] t = new Fp521[8];
+        for (int i = 0; i < t.length; i++) {
+            t[i] = new Fp521();
+        }
+        return t;
+    });
+    private static final int WNAF_WIDTH = 5; // window of the variable-base scalar multiplication
+    static final int WINDOW = 4; // bits of the scalar per entry of a fixed-base table (windowTable)
+    public static final int ENCODED_LENGTH = 66; // bytes of a compressed point: 521 bits of x plus the sign of y
+
+    // extended coordinates: x = myX/myZ, y = myY/myZ, x*y = myT/myZ
+    private final Fp521 myX;
+    private final Fp521 myY;
+    private final Fp521 myZ;
+    private final Fp521 myT;
+    private BigInteger affineX, affineY; // cached results of getX/getY, cleared whenever the point changes
 
     public Point() {
-        myX = BigInteger.ZERO;
-        myY = BigInteger.ONE;
+        myX = new Fp521();
+        myY = Fp521.valueOf(BigInteger.ONE);
+        myZ = Fp521.valueOf(BigInteger.ONE);
+        myT = new Fp521();
     }
 
     public Point(BigInteger x, BigInteger y) {
-        myX = x;
-        myY = y;
-        E_521 = BigInteger.ONE.add(d.multiply(myX.pow(2)).multiply(myY.pow(2)));
+        myX = Fp521.valueOf(x);
+        myY = Fp521.valueOf(y);
+        myZ = Fp521.valueOf(BigInteger.ONE);
+        myT = new Fp521().mul(myX, myY);
+        E_521 = BigInteger.ONE.add(d.multiply(x.pow(2)).multiply(y.pow(2)));
         //System.out.println(E_521);
     }
 
+    /**
+     * Decompress a point from its x-coordinate and the least significant bit of its y-coordinate,
+     * solving y^2 = (1 - x^2) / (1 - d*x^2) with one combined inversion and square root.
+     *
+     * @param x the x-coordinate, in [0, p)
+     * @param sigBit the least significant bit of y
+     * @throws IllegalArgumentException if no point of E_521 has this encoding
+     */
     public Point(BigInteger x, boolean sigBit) {
-        BigInteger xpow2 = BigInteger.valueOf(18).pow(2);
-        BigInteger radicand = BigInteger.ONE.subtract(xpow2).multiply((BigInteger.ONE.add(BigInteger.valueOf(376014).multiply(xpow2)).mod(myP)).modInverse(myP));
-        BigInteger y = Point.sqrt(radicand, myP, sigBit);
-        myX = x;
-        myY = y;
+        if (x.signum() < 0 || x.compareTo(myP) >= 0) {
+            throw new IllegalArgumentException("x-coordinate out of range");
+        }
+        Fp521 one = Fp521.valueOf(BigInteger.ONE);
+        myX = Fp521.valueOf(x);
+        Fp521 x2 = new Fp521().square(myX);
+        Fp521 u = new Fp521().sub(one, x2);
+        Fp521 v = new Fp521().mul(dFp, x2);
+        v.sub(one, v);
+        myY = new Fp521();
+        if (!myY.sqrtRatio(u, v) || (sigBit && myY.isZero())) {
+            throw new IllegalArgumentException("no point of E_521 has this encoding");
+        }
+        if (myY.isOdd() != sigBit) {
+            myY.sub(new Fp521(), myY);
+        }
+        myZ = one;
+        myT = new Fp521().mul(myX, myY);
+    }
+
+    public Point(Point a) {
+        this(new Fp521(a.myX), new Fp521(a.myY), new Fp521(a.myZ), new Fp521(a.myT));
+        affineX = a.affineX;
+        affineY = a.affineY;
+    }
+
+    private Point(Fp521 X, Fp521 Y, Fp521 Z, Fp521 T) {
+        myX = X;
+        myY = Y;
+        myZ = Z;
+        myT = T;
     }
 
     BigInteger getX() {
-        return myX;
+        normalize();
+        return affineX;
     }
 
     BigInteger getY() {
-        return myY;
+        normalize();
+        return affineY;
+    }
+
+    /**
+     * Compressed encoding: x as ENCODED_LENGTH big-endian bytes, with the least significant bit of y
+     * stored in the otherwise unused top bit (x < 2^521 never reaches it).
+     *
+     * @return the compressed encoding of this point
+     */
+    public byte[] toBytes() {
+        byte[] x = getX().toByteArray();
+        byte[] out = new byte[ENCODED_LENGTH];
+        int n = Math.min(x.length, ENCODED_LENGTH);
+        System.arraycopy(x, x.length - n, out, ENCODED_LENGTH - n, n);
+        if (getY().testBit(0)) {
+            out[0] |= (byte) 0x80;
+        }
+        return out;
+    }
+
+    /**
+     * Decode a point written by toBytes.
+     *
+     * @param b the compressed encoding
+     * @return the decoded point
+     * @throws IllegalArgumentException if b is not the encoding of a point of E_521
+     */
+    public static Point fromBytes(byte[] b) {
+        if (b.length != ENCODED_LENGTH) {
+            throw new IllegalArgumentException("a compressed point is " + ENCODED_LENGTH + " bytes long");
+        }
+        byte[] x = b.clone();
+        x[0] &= 0x7F;
+        return new Point(new BigInteger(1, x), (b[0] & 0x80) != 0);
     }
 
+    /**
+     * Bring the point back to affine form (Z = 1) with a single inversion.
+     */
+    private void normalize() {
+        if (affineX == null) {
+            Fp521 zInv = new Fp521().invert(myZ);
+            myX.mul(myX, zInv);
+            myY.mul(myY, zInv);
+            myZ.set(Fp521.valueOf(BigInteger.ONE));
+            myT.mul(myX, myY);
+            affineX = myX.toBigInteger();
+            affineY = myY.toBigInteger();
+        }
+    }
 
+    /**
+     * Bring many points back to affine form with a single inversion (Montgomery's simultaneous inversion):
+     * the product of all Z is inverted once, and each 1/Z is then peeled off with about three multiplications.
+     * Points that are already affine are skipped, and a point that occurs more than once is normalized once.
+     *
+     * @param points the points to normalize in place
+     */
+    public static void normalize(Point[] points) {
+        int n = 0;
+        Point[] todo = new Point[points.length];
+        Set<Point> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Point P : points) {
+            if (P.affineX == null && seen.add(P)) { // a second pass over the same Z would divide by it twice
+                todo[n++] = P;
+            }
+        }
+        if (n == 0) {
+            return;
+        }
+        // prefix[i] = Z_0 * Z_1 * ... * Z_i
+        Fp521[] prefix = new Fp521[n];
+        prefix[0] = new Fp521(todo[0].myZ);
+        for (int i = 1; i < n; i++) {
+            prefix[i] = new Fp521().mul(prefix[i - 1], todo[i].myZ);
+        }
+        Fp521 inv = new Fp521().invert(prefix[n - 1]); // 1 / (Z_0 * ... * Z_i), for i = n - 1 downwards
+        Fp521 zInv = new Fp521();
+        for (int i = n - 1; i >= 0; i--) {
+            Point P = todo[i];
+            if (i > 0) {
+                zInv.mul(inv, prefix[i - 1]);
+                inv.mul(inv, P.myZ);
+            } else {
+                zInv.set(inv);
+            }
+            P.myX.mul(P.myX, zInv);
+            P.myY.mul(P.myY, zInv);
+            P.myZ.set(Fp521.valueOf(BigInteger.ONE));
+            P.myT.mul(P.myX, P.myY);
+            P.affineX = P.myX.toBigInteger();
+            P.affineY = P.myY.toBigInteger();
+        }
+    }
+
+    private Fp521[] scratch() {
+        affineX = null;
+        affineY = null;
+        return SCRATCH.get();
+    }
+
+    /**
+     * Add a to this point in place, with the unified inversion-free formulas for extended coordinates
+     * (Hisil, Wong, Carter and Dawson, "add-2008-hwcd" with a = 1). a may be this point itself.
+     */
     void sum(Point a) {
-        BigInteger xNum = this.getX().multiply(a.getY()).add(this.getY().multiply(a.getX())).mod(myP);
-        BigInteger xDen = BigInteger.ONE.add(d.multiply(this.getX()).multiply(a.getX()).multiply(this.getY()).multiply(a.getY())).modInverse(myP);
-        BigInteger yNum = this.getY().multiply(a.getY()).subtract(this.getX().multiply(a.getX())).mod(myP);
-        BigInteger yDen = BigInteger.ONE.subtract(d.multiply(this.getX()).multiply(a.getX()).multiply(this.getY()).multiply(a.getY())).modInverse(myP);
-        myX = xDen.multiply(xNum).mod(myP);
-        myY = yDen.multiply(yNum).mod(myP);
+        if (Metrics.ENABLED) {
+            Metrics.POINT_SUM.increment();
+        }
+        Fp521[] t = scratch();
+        Fp521 A = t[0], B = t[1], C = t[2], D = t[3], E = t[4], F = t[5], G = t[6], H = t[7];
+        A.mul(this.myX, a.myX);
+        B.mul(this.myY, a.myY);
+        C.mul(this.myT, a.myT).mul(C, dFp);
+        D.mul(this.myZ, a.myZ);
+        E.add(this.myX, this.myY);
+        F.add(a.myX, a.myY);
+        E.mul(E, F).sub(E, A).sub(E, B);
+        F.sub(D, C);
+        G.add(D, C);
+        H.sub(B, A);
+        myX.mul(E, F);
+        myY.mul(G, H);
+        myT.mul(E, H);
+        myZ.mul(F, G);
     }
 
+    /**
+     * Double this point in place, with the inversion-free formulas for extended coordinates
+     * ("dbl-2008-hwcd" with a = 1).
+     */
     void doubling()
     {
-        BigInteger xNum = BigInteger.TWO.multiply(this.getX()).multiply(this.getY()).mod(myP);
-        BigInteger xDen = this.getX().pow(2).add(this.getY().pow(2)).modInverse(myP);
-        BigInteger yNum = this.getY().pow(2).subtract(this.getX().pow(2)).mod(myP);
-        BigInteger yDen = BigInteger.TWO.subtract(this.getX().pow(2)).subtract(this.getY().pow(2)).modInverse(myP);
-        myX = xDen.multiply(xNum).mod(myP);
-        myY = yDen.multiply(yNum).mod(myP);
+        if (Metrics.ENABLED) {
+            Metrics.POINT_DOUBLING.increment();
+        }
+        Fp521[] t = scratch();
+        Fp521 A = t[0], B = t[1], C = t[2], E = t[4], F = t[5], G = t[6], H = t[7];
+        A.square(myX);
+        B.square(myY);
+        C.square(myZ).add(C, C);
+        E.add(myX, myY).square(E).sub(E, A).sub(E, B);
+        G.add(A, B);
+        F.sub(G, C);
+        H.sub(A, B);
+        myX.mul(E, F);
+        myY.mul(G, H);
+        myT.mul(E, H);
+        myZ.mul(F, G);
     }
 
 
     public boolean equals(Point a) {
-        if ((this.myX.compareTo(a.myX) == 0) && (this.myY.compareTo(a.myY) == 0)) {
+        // x1/z1 = x2/z2 and y1/z1 = y2/z2, compared without inverting
+        Fp521 l = new Fp521(), r = new Fp521();
+        if (l.mul(this.myX, a.myZ).equals(r.mul(a.myX, this.myZ))
+                && l.mul(this.myY, a.myZ).equals(r.mul(a.myY, this.myZ))) {
             return true;
         }
         return false;
     }
 
     public Point opposite(){
-        return new Point(this.myX.negate(), this.myY);
+        Fp521 zero = new Fp521();
+        return new Point(new Fp521().sub(zero, this.myX), new Fp521(this.myY), new Fp521(this.myZ), new Fp521().sub(zero, this.myT));
+    }
+
+    /**
+     * Compute k*P for this point P, without modifying it.
+     * k is reduced mod r and recoded to width-WNAF_WIDTH non-adjacent form, then evaluated left to right
+     * against a per-call table of the odd multiples P, 3P, ..., (2^(WNAF_WIDTH - 1) - 1)P and their opposites.
+     * P is assumed to lie in the subgroup of order r, as all public keys and cryptogram points do.
+     *
+     * @param k any integer scalar
+     * @return a new point k*P
+     */
+    public Point multiply(BigInteger k) {
+        return interleave(new int[][]{wnaf(k.mod(r), WNAF_WIDTH)}, new Point[][][]{oddMultiples(this, WNAF_WIDTH)});
+    }
+
+    /**
+     * Compute a*G + b*Q with a single interleaved (Shamir/Straus) double-scalar multiplication:
+     * both scalars are recoded to NAF and share one chain of doublings.
+     * G uses a shared precomputed table of odd multiples, Q a per-call one.
+     *
+     * @param a scalar for the generator G
+     * @param b scalar for Q
+     * @param Q any point of the subgroup of order r
+     * @return a new point a*G + b*Q
+     */
+    public static Point multiplyG(BigInteger a, BigInteger b, Point Q) {
+        return interleave(new int[][]{wnaf(a.mod(r), GeneratorTable.NAF_WIDTH), wnaf(b.mod(r), WNAF_WIDTH)},
+                new Point[][][]{GeneratorTable.ODD_MULTIPLES, oddMultiples(Q, WNAF_WIDTH)});
+    }
+
+    /**
+     * Evaluate sum of naf[i] * P[i] with one shared chain of doublings,
+     * where tables[i] holds the odd multiples of P[i] and their opposites (see oddMultiples).
+     */
+    static Point interleave(int[][] naf, Point[][][] tables) {
+        int top = -1;
+        for (int[] digits : naf) {
+            for (int j = digits.length - 1; j > top; j--) {
+                if (digits[j] != 0) {
+                    top = j;
+                    break;
+                }
+            }
+        }
+        Point Q = new Point();
+        for (int j = top; j >= 0; j--) {
+            Q.doubling();
+            for (int i = 0; i < naf.length; i++) {
+                int digit = (j < naf[i].length) ? naf[i][j] : 0;
+                if (digit > 0) {
+                    Q.sum(tables[i][0][digit >> 1]);
+                } else if (digit < 0) {
+                    Q.sum(tables[i][1][-digit >> 1]);
+                }
+            }
+        }
+        return Q;
+    }
+
+    /**
+     * Tabulate P, 3P, ..., (2^(w-1) - 1)P in row 0 and their opposites in row 1.
+     */
+    static Point[][] oddMultiples(Point P, int w) {
+        int n = 1 << (w - 2);
+        Point[] pos = new Point[n], neg = new Point[n];
+        Point twice = new Point(P);
+        twice.doubling();
+        pos[0] = new Point(P);
+        for (int i = 1; i < n; i++) {
+            pos[i] = new Point(pos[i - 1]);
+            pos[i].sum(twice);
+        }
+        for (int i = 0; i < n; i++) {
+            neg[i] = pos[i].opposite();
+        }
+        return new Point[][]{pos, neg};
+    }
+
+    /**
+     * Recode a non-negative scalar to width-w NAF: k = sum of naf[i] * 2^i, where every nonzero digit is odd,
+     * lies in (-2^(w-1), 2^(w-1)), and is followed by at least w - 1 zero digits.
+     */
+    static int[] wnaf(BigInteger k, int w) {
+        int[] naf = new int[k.bitLength() + 1];
+        int pow2 = 1 << w;
+        boolean carry = false;
+        int pos = 0;
+        while (pos <= k.bitLength()) {
+            if (k.testBit(pos) == carry) {
+                pos++;
+                continue;
+            }
+            int digit = carry ? 1 : 0;
+            for (int b = 0; b < w; b++) {
+                digit += k.testBit(pos + b) ? (1 << b) : 0;
+            }
+            carry = (digit & (pow2 >>> 1)) != 0;
+            if (carry) {
+                digit -= pow2;
+            }
+            naf[pos] = digit;
+            pos += w;
+        }
+        return naf;
+    }
+
+    /**
+     * Compute k*G for the generator G = (18, y) with even y, from a shared table of precomputed multiples.
+     * k is reduced mod r, the order of G, then each 4-bit window of k selects one table entry to add,
+     * so no doublings are needed.
+     *
+     * @param k any integer scalar
+     * @return a new point k*G
+     */
+    public static Point multiplyG(BigInteger k) {
+        return multiplyWindowed(k, GeneratorTable.TABLE);
+    }
+
+    /**
+     * Compute k*P from a table built by windowTable(P): one table lookup and one sum per WINDOW bits of k.
+     *
+     * @param k any integer scalar
+     * @param table windowTable(P) for a point P of the subgroup of order r
+     * @return a new point k*P
+     */
+    static Point multiplyWindowed(BigInteger k, Point[][] table) {
+        BigInteger e = k.mod(r);
+        Point Q = new Point();
+        for (int i = 0; i < table.length; i++) {
+            int j = 0;
+            for (int b = WINDOW - 1; b >= 0; b--) {
+                j = (j << 1) | (e.testBit(WINDOW * i + b) ? 1 : 0);
+            }
+            if (j != 0) {
+                Q.sum(table[i][j]);
+            }
+        }
+        return Q;
+    }
+
+    /**
+     * Tabulate table[i][j] = j * 2^(WINDOW * i) * P for all WINDOW-bit windows of a scalar mod r
+     * (about 2000 points, built with as many sums).
+     */
+    static Point[][] windowTable(Point P) {
+        Point[][] table = new Point[(r.bitLength() + WINDOW - 1) / WINDOW][1 << WINDOW];
+        Point base = new Point(P);
+        for (Point[] row : table) {
+            row[1] = new Point(base);
+            for (int j = 2; j < row.length; j++) {
+                row[j] = new Point(row[j - 1]);
+                row[j].sum(base);
+            }
+            base = new Point(row[row.length - 1]);
+            base.sum(row[1]); // 2^WINDOW times the previous base
+        }
+        return table;
+    }
+
+    /**
+     * Lazily built, immutable tables shared by all threads:
+     * TABLE = windowTable(G), and the odd multiples of G for NAF_WIDTH.
+     */
+    private static final class GeneratorTable {
+        static final int NAF_WIDTH = 7;
+        static final Point[][] TABLE = windowTable(new Point(BigInteger.valueOf(18), false));
+        static final Point[][] ODD_MULTIPLES = oddMultiples(new Point(BigInteger.valueOf(18), false), NAF_WIDTH);
     }
 
     /**
@@ -83,7 +443,9 @@ public class Point {
         if (v.signum() == 0) {
             return BigInteger.ZERO;
         }
-        BigInteger r = v.modPow(p.shiftRight(2).add(BigInteger.ONE), p);
+        BigInteger r = p.equals(myP)
+                ? new Fp521().sqrt(Fp521.valueOf(v)).toBigInteger()
+                : v.modPow(p.shiftRight(2).add(BigInteger.ONE), p);
         if (r.testBit(0) != lsb) {
             r = p.subtract(r); // correct the lsb
         }
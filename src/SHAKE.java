@@ -1,4 +1,12 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Experimental cSHAKE256 and KMACXOF256 implementation.
@@ -9,13 +17,24 @@ import java.util.Arrays;
  * @author Arwain Karlin
  */
 public class SHAKE {
-    private byte[] b = new byte[200];    // 8-bit bytes
+    private long[] q = new long[25];     // 64-bit lanes
     private int pt, rsiz, mdlen;        // these don't overflow
     private static final int KECCAKF_ROUNDS = 24;
 
-    private boolean ext = false, kmac = false;
+    private boolean ext = false, kmac = false, tuple = false;
     private static final byte[] KMAC_N = {(byte) 0x4B, (byte) 0x4D, (byte) 0x41, (byte) 0x43}; // "KMAC" in ASCII
     private static final byte[] right_encode_0 = {(byte) 0x00, (byte) 0x01}; // right_encode(0)
+    private static final byte[] PARALLEL_HASH_N = {(byte) 0x50, (byte) 0x61, (byte) 0x72, (byte) 0x61, (byte) 0x6C, (byte) 0x6C,
+            (byte) 0x65, (byte) 0x6C, (byte) 0x48, (byte) 0x61, (byte) 0x73, (byte) 0x68}; // "ParallelHash" in ASCII
+    private static final byte[] TUPLE_HASH_N = {(byte) 0x54, (byte) 0x75, (byte) 0x70, (byte) 0x6C, (byte) 0x65,
+            (byte) 0x48, (byte) 0x61, (byte) 0x73, (byte) 0x68}; // "TupleHash" in ASCII
+    private static final int PARALLEL_WINDOW = 1 << 28; // bytes of a file mapped at once by ParallelHash
+    private static final int PARALLEL_GRAIN = 1 << 20; // bytes of leaves hashed sequentially by one fork-join task
+    private static final int PARALLEL_DIGESTS = 1 << 24; // bytes of leaf digests buffered at once by ParallelHash
+
+    // little-endian 64-bit views used to absorb whole lanes at once
+    private static final VarHandle LE_LONG_ARRAY = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LE_LONG_BUFFER = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
 
     private static final long[/*24*/] keccakf_rndc = {
             0x0000000000000001L, 0x0000000000008082L, 0x800000000000808aL,
@@ -28,16 +47,6 @@ public class SHAKE {
             0x8000000000008080L, 0x0000000080000001L, 0x8000000080008008L
     };
 
-    private static final int[/*24*/] keccakf_rotc = {
-            1, 3, 6, 10, 15, 21, 28, 36, 45, 55, 2, 14,
-            27, 41, 56, 8, 25, 43, 62, 18, 39, 61, 20, 44
-    };
-
-    private static final int[/*24*/] keccakf_piln = {
-            10, 7, 11, 17, 18, 3, 5, 16, 8, 21, 24, 4,
-            15, 23, 19, 13, 12, 2, 20, 14, 22, 9, 6, 1
-    };
-
     /**
      * Rotate the 64-bit long value x by y positions to the left
      *
@@ -50,77 +59,133 @@ public class SHAKE {
     }
 
     /**
-     * Apply the Keccak-f permutation to the byte-oriented state buffer v.
+     * Apply the Keccak-f permutation to the lane-oriented state buffer q.
+     * The rounds are fully unrolled over local variables, so no temporary buffers are allocated.
      *
-     * @param v
+     * @param q the 25 64-bit lanes of the Keccak state
      */
-    private static void sha3_keccakf(byte[/*200*/] v) {
-        long[] q = new long[25]; // 64-bit words
-        long[] bc = new long[5];
-
-        // map from bytes (in v[]) to longs (in q[]).
-        for (int i = 0, j = 0; i < 25; i++, j += 8) {
-            q[i] = (((long) v[j + 0] & 0xFFL)) | (((long) v[j + 1] & 0xFFL) << 8) |
-                    (((long) v[j + 2] & 0xFFL) << 16) | (((long) v[j + 3] & 0xFFL) << 24) |
-                    (((long) v[j + 4] & 0xFFL) << 32) | (((long) v[j + 5] & 0xFFL) << 40) |
-                    (((long) v[j + 6] & 0xFFL) << 48) | (((long) v[j + 7] & 0xFFL) << 56);
+    private static void sha3_keccakf(long[/*25*/] q) {
+        if (Metrics.ENABLED) {
+            Metrics.KECCAKF.increment();
         }
+        long a00 = q[0], a01 = q[1], a02 = q[2], a03 = q[3], a04 = q[4];
+        long a05 = q[5], a06 = q[6], a07 = q[7], a08 = q[8], a09 = q[9];
+        long a10 = q[10], a11 = q[11], a12 = q[12], a13 = q[13], a14 = q[14];
+        long a15 = q[15], a16 = q[16], a17 = q[17], a18 = q[18], a19 = q[19];
+        long a20 = q[20], a21 = q[21], a22 = q[22], a23 = q[23], a24 = q[24];
 
-        // actual iteration
         for (int r = 0; r < KECCAKF_ROUNDS; r++) {
 
             // Theta
-            for (int i = 0; i < 5; i++) {
-                bc[i] = q[i] ^ q[i + 5] ^ q[i + 10] ^ q[i + 15] ^ q[i + 20];
-            }
-            for (int i = 0; i < 5; i++) {
-                long t = bc[(i + 4) % 5] ^ ROTL64(bc[(i + 1) % 5], 1);
-                for (int j = 0; j < 25; j += 5) {
-                    q[j + i] ^= t;
-                }
-            }
+            long c0 = a00 ^ a05 ^ a10 ^ a15 ^ a20;
+            long c1 = a01 ^ a06 ^ a11 ^ a16 ^ a21;
+            long c2 = a02 ^ a07 ^ a12 ^ a17 ^ a22;
+            long c3 = a03 ^ a08 ^ a13 ^ a18 ^ a23;
+            long c4 = a04 ^ a09 ^ a14 ^ a19 ^ a24;
 
-            // Rho Pi
-            long t = q[1];
-            for (int i = 0; i < 24; i++) {
-                int j = keccakf_piln[i];
-                bc[0] = q[j];
-                q[j] = ROTL64(t, keccakf_rotc[i]);
-                t = bc[0];
-            }
+            long d0 = c4 ^ ROTL64(c1, 1);
+            long d1 = c0 ^ ROTL64(c2, 1);
+            long d2 = c1 ^ ROTL64(c3, 1);
+            long d3 = c2 ^ ROTL64(c4, 1);
+            long d4 = c3 ^ ROTL64(c0, 1);
 
-            //  Chi
-            for (int j = 0; j < 25; j += 5) {
-                for (int i = 0; i < 5; i++) {
-                    bc[i] = q[j + i];
-                }
-                for (int i = 0; i < 5; i++) {
-                    q[j + i] ^= (~bc[(i + 1) % 5]) & bc[(i + 2) % 5];
-                }
-            }
+            a00 ^= d0; a05 ^= d0; a10 ^= d0; a15 ^= d0; a20 ^= d0;
+            a01 ^= d1; a06 ^= d1; a11 ^= d1; a16 ^= d1; a21 ^= d1;
+            a02 ^= d2; a07 ^= d2; a12 ^= d2; a17 ^= d2; a22 ^= d2;
+            a03 ^= d3; a08 ^= d3; a13 ^= d3; a18 ^= d3; a23 ^= d3;
+            a04 ^= d4; a09 ^= d4; a14 ^= d4; a19 ^= d4; a24 ^= d4;
 
-            //  Iota
-            q[0] ^= keccakf_rndc[r];
-        }
+            // Rho Pi (the lane at x + 5y moves to y + 5(2x + 3y))
+            long b00 = a00;
+            long b10 = ROTL64(a01, 1);
+            long b20 = ROTL64(a02, 62);
+            long b05 = ROTL64(a03, 28);
+            long b15 = ROTL64(a04, 27);
+            long b16 = ROTL64(a05, 36);
+            long b01 = ROTL64(a06, 44);
+            long b11 = ROTL64(a07, 6);
+            long b21 = ROTL64(a08, 55);
+            long b06 = ROTL64(a09, 20);
+            long b07 = ROTL64(a10, 3);
+            long b17 = ROTL64(a11, 10);
+            long b02 = ROTL64(a12, 43);
+            long b12 = ROTL64(a13, 25);
+            long b22 = ROTL64(a14, 39);
+            long b23 = ROTL64(a15, 41);
+            long b08 = ROTL64(a16, 45);
+            long b18 = ROTL64(a17, 15);
+            long b03 = ROTL64(a18, 21);
+            long b13 = ROTL64(a19, 8);
+            long b14 = ROTL64(a20, 18);
+            long b24 = ROTL64(a21, 2);
+            long b09 = ROTL64(a22, 61);
+            long b19 = ROTL64(a23, 56);
+            long b04 = ROTL64(a24, 14);
 
-        // map from longs (in q[]) to bytes (in v[]).
-        for (int i = 0, j = 0; i < 25; i++, j += 8) {
-            long t = q[i];
-            v[j + 0] = (byte) ((t) & 0xFF);
-            v[j + 1] = (byte) ((t >> 8) & 0xFF);
-            v[j + 2] = (byte) ((t >> 16) & 0xFF);
-            v[j + 3] = (byte) ((t >> 24) & 0xFF);
-            v[j + 4] = (byte) ((t >> 32) & 0xFF);
-            v[j + 5] = (byte) ((t >> 40) & 0xFF);
-            v[j + 6] = (byte) ((t >> 48) & 0xFF);
-            v[j + 7] = (byte) ((t >> 56) & 0xFF);
+            // Chi
+            a00 = b00 ^ (~b01 & b02);
+            a01 = b01 ^ (~b02 & b03);
+            a02 = b02 ^ (~b03 & b04);
+            a03 = b03 ^ (~b04 & b00);
+            a04 = b04 ^ (~b00 & b01);
+            a05 = b05 ^ (~b06 & b07);
+            a06 = b06 ^ (~b07 & b08);
+            a07 = b07 ^ (~b08 & b09);
+            a08 = b08 ^ (~b09 & b05);
+            a09 = b09 ^ (~b05 & b06);
+            a10 = b10 ^ (~b11 & b12);
+            a11 = b11 ^ (~b12 & b13);
+            a12 = b12 ^ (~b13 & b14);
+            a13 = b13 ^ (~b14 & b10);
+            a14 = b14 ^ (~b10 & b11);
+            a15 = b15 ^ (~b16 & b17);
+            a16 = b16 ^ (~b17 & b18);
+            a17 = b17 ^ (~b18 & b19);
+            a18 = b18 ^ (~b19 & b15);
+            a19 = b19 ^ (~b15 & b16);
+            a20 = b20 ^ (~b21 & b22);
+            a21 = b21 ^ (~b22 & b23);
+            a22 = b22 ^ (~b23 & b24);
+            a23 = b23 ^ (~b24 & b20);
+            a24 = b24 ^ (~b20 & b21);
+
+            // Iota
+            a00 ^= keccakf_rndc[r];
         }
+
+        q[0] = a00; q[1] = a01; q[2] = a02; q[3] = a03; q[4] = a04;
+        q[5] = a05; q[6] = a06; q[7] = a07; q[8] = a08; q[9] = a09;
+        q[10] = a10; q[11] = a11; q[12] = a12; q[13] = a13; q[14] = a14;
+        q[15] = a15; q[16] = a16; q[17] = a17; q[18] = a18; q[19] = a19;
+        q[20] = a20; q[21] = a21; q[22] = a22; q[23] = a23; q[24] = a24;
     }
 
     public SHAKE() {
     }
 
-    private static final byte[] left_encode_0 = {(byte) 0x01, (byte) 0x00}; // left_encode(0)
+    /**
+     * Create a snapshot of another sponge, including its absorbed state and mode.
+     *
+     * @param other the sponge to copy
+     */
+    public SHAKE(SHAKE other) {
+        copyFrom(other);
+    }
+
+    /**
+     * Overwrite this sponge with the state and mode of another one, without allocating.
+     *
+     * @param other the sponge to copy
+     */
+    public void copyFrom(SHAKE other) {
+        System.arraycopy(other.q, 0, this.q, 0, 25);
+        this.pt = other.pt;
+        this.rsiz = other.rsiz;
+        this.mdlen = other.mdlen;
+        this.ext = other.ext;
+        this.kmac = other.kmac;
+        this.tuple = other.tuple;
+    }
 
     /**
      * Concatenate two byte arrays.
@@ -143,96 +208,127 @@ public class SHAKE {
     }
 
     /**
-     * Apply the NIST encode_string primitive to S.
+     * Absorb a single byte into the sponge.
+     *
+     * @param x the byte to absorb (only the 8 low-order bits are used)
+     */
+    private void absorb(int x) {
+        this.q[this.pt >>> 3] ^= ((long) x & 0xFFL) << ((this.pt & 7) << 3);
+        if (++this.pt >= this.rsiz) {
+            sha3_keccakf(q);
+            this.pt = 0;
+        }
+    }
+
+    /**
+     * Absorb n zero bytes, which only advances the sponge position.
+     *
+     * @param n zero byte count
+     */
+    private void absorbZeros(long n) {
+        while (n > 0) {
+            int step = (int) Math.min(n, this.rsiz - this.pt);
+            n -= step;
+            if ((this.pt += step) >= this.rsiz) {
+                sha3_keccakf(q);
+                this.pt = 0;
+            }
+        }
+    }
+
+    /**
+     * Absorb the NIST encode_string primitive applied to a slice of S, without building the encoding.
      *
-     * @param S string to encode (if null, the encoding of "" is used)
-     * @return the encoding of S
+     * @param S   string to encode (if null, the encoding of "" is used)
+     * @param off index of the first byte of the string
+     * @param len byte count of the string
+     * @return the number of bytes absorbed
      */
-    private static byte[] encode_string(byte[] S) {
+    private long encode_string(byte[] S, int off, int len) {
         // Validity Conditions: 0 ≤ len(S) < 2^2040
-        int slen = (S != null) ? S.length : 0;
-        byte[] lenS = (S != null) ? left_encode(slen << 3) : left_encode_0; // NB: bitlength, not bytelength
-        byte[] encS = new byte[lenS.length + slen];
-        System.arraycopy(lenS, 0, encS, 0, lenS.length);
-        System.arraycopy((S != null) ? S : encS, 0, encS, lenS.length, slen);
-        return encS; // left_encode(len(S)) || S.
+        if (S == null) {
+            return left_encode(0);
+        }
+        int n = left_encode((long) len << 3); // NB: bitlength, not bytelength
+        update(S, off, len);
+        return n + (long) len; // left_encode(len(S)) || S.
     }
 
     /**
-     * Apply the NIST left_encode primitive to x (which is typically the bitlength of some string).
+     * Absorb the NIST left_encode primitive applied to x (which is typically the bitlength of some string).
      *
      * @param x the integer to be left encoded
-     * @return the left encoding of x
+     * @return the number of bytes absorbed
      */
-    private static byte[] left_encode(int x) {
+    private int left_encode(long x) {
         // Validity Conditions: 0 ≤ x < 2^2040
         // 1. Let n be the smallest positive integer for which 2^(8*n) > x.
         int n = 1;
-        while ((1 << (8 * n)) <= x) {
+        while (n < 8 && (x >>> (8 * n)) != 0) {
             n++;
         }
-        if (n >= 256) {
-            throw new RuntimeException("Left encoding overflow for length " + n);
-        }
+        // 4. Let O0 = enc8(n).
+        absorb(n);
         // 2. Let x1, x2, ..., xn be the base-256 encoding of x satisfying:
         //    x = Σ 2^(8*(n-i))*x_i, for i = 1 to n.
         // 3. Let Oi = enc8(xi), for i = 1 to n.
-        byte[] val = new byte[n + 1];
-        for (int i = n; i > 0; i--) {
-            val[i] = (byte) (x & 0xFF);
-            x >>>= 8;
+        for (int i = n - 1; i >= 0; i--) {
+            absorb((int) (x >>> (8 * i)));
         }
-        // 4. Let O0 = enc8(n).
-        val[0] = (byte) n;
         // 5. Return O = O0 || O1 || …|| On−1 || On.
-        return val;
+        return n + 1;
+    }
+
+    /**
+     * Absorb the NIST right_encode primitive applied to x (which is typically a count or an output bitlength).
+     *
+     * @param x the integer to be right encoded
+     * @return the number of bytes absorbed
+     */
+    private int right_encode(long x) {
+        // Validity Conditions: 0 ≤ x < 2^2040
+        // 1. Let n be the smallest positive integer for which 2^(8*n) > x.
+        int n = 1;
+        while (n < 8 && (x >>> (8 * n)) != 0) {
+            n++;
+        }
+        // 2. Let x1, x2, ..., xn be the base-256 encoding of x.
+        // 3. Let Oi = enc8(xi), for i = 1 to n.
+        for (int i = n - 1; i >= 0; i--) {
+            absorb((int) (x >>> (8 * i)));
+        }
+        // 4. Let On+1 = enc8(n).
+        absorb(n);
+        // 5. Return O = O1 || O2 || …|| On || On+1.
+        return n + 1;
     }
 
     /**
-     * Apply the NIST bytepad primitive to a byte array X with encoding factor w.
+     * Finish the NIST bytepad primitive with encoding factor w, once left_encode(w) and the padded
+     * string have been absorbed (z = left_encode(w) || X, of length zlen bytes).
      *
-     * @param X the byte array to bytepad
-     * @param w the encoding factor (the output length must be a multiple of w)
-     * @return the byte-padded byte array X with encoding factor w.
+     * @param zlen byte count absorbed since the bytepad started
+     * @param w    the encoding factor (the output length must be a multiple of w)
      */
-    private static byte[] bytepad(byte[] X, int w) {
+    private void bytepad(long zlen, int w) {
         // Validity Conditions: w > 0
-        // 1. z = left_encode(w) || X.
-        byte[] wenc = left_encode(w);
-        byte[] z = new byte[w * ((wenc.length + X.length + w - 1) / w)]; // z.length is the smallest multiple of w that fits wenc.length + X.length
-        System.arraycopy(wenc, 0, z, 0, wenc.length);
-        System.arraycopy(X, 0, z, wenc.length, X.length);
         // 2. len(z) mod 8 = 0 (byte-oriented implementation)
         // 3. while (len(z)/8) mod w ≠ 0: z = z || 00000000
-        for (int i = wenc.length + X.length; i < z.length; i++) {
-            z[i] = (byte) 0;
-        }
-        /*
-        System.out.print("bytepad data [" + z.length + " bytes]:");
-        for (int i = 0; i < z.length; i++) {
-            if ((i & 15) == 0) {
-                System.out.print("\n    ");
-            } else {
-                System.out.print(" ");
-            }
-            System.out.print(byteToHex(z[i]));
-        }
-        System.out.println();
-        //*/
-        return z;
+        absorbZeros((w - zlen % w) % w);
     }
 
     /**
      * Initialize the SHAKE256 sponge.
      */
     public void init256() {
-        Arrays.fill(this.b, (byte) 0);
+        Arrays.fill(this.q, 0L);
         this.mdlen = 32; // fixed for SHAKE256 (for SHA128 it would be 16)
         this.rsiz = 200 - 2 * mdlen;
         this.pt = 0;
 
         this.ext = false;
         this.kmac = false;
+        this.tuple = false;
     }
 
     /**
@@ -246,8 +342,11 @@ public class SHAKE {
         init256();
         if ((N != null && N.length != 0) || (S != null && S.length != 0)) {
             this.ext = true; // cSHAKE instead of SHAKE
-            byte[] prefix = bytepad(concat(encode_string(N), encode_string(S)), 136);
-            update(prefix, prefix.length);
+            // bytepad(encode_string(N) || encode_string(S), 136)
+            long zlen = left_encode(136);
+            zlen += encode_string(N, 0, (N != null) ? N.length : 0);
+            zlen += encode_string(S, 0, (S != null) ? S.length : 0);
+            bytepad(zlen, 136);
         }
     }
 
@@ -260,10 +359,55 @@ public class SHAKE {
      */
     public void kinit256(byte[] K, byte[] S) {
         // Validity Conditions: len(K) < 2^2040 and len(S) < 2^2040
-        byte[] encK = bytepad(encode_string(K), 136);
         cinit256(KMAC_N, S);
         this.kmac = true;
-        update(encK, encK.length);
+        absorbKey(K);
+    }
+
+    /**
+     * Absorb bytepad(encode_string(K), 136), the key block of KMAC.
+     *
+     * @param K MAC key
+     */
+    private void absorbKey(byte[] K) {
+        long zlen = left_encode(136);
+        zlen += encode_string(K, 0, (K != null) ? K.length : 0);
+        bytepad(zlen, 136);
+    }
+
+    /**
+     * Initialize the TupleHashXOF256 sponge.
+     * Each tuple element is then absorbed with updateField, or with beginField followed by update calls.
+     *
+     * @param S customization string
+     */
+    public void tinit256(byte[] S) {
+        // Validity Conditions: len(S) < 2^2040
+        cinit256(TUPLE_HASH_N, S);
+        this.tuple = true;
+    }
+
+    /**
+     * Absorb one complete tuple element, as encode_string(X[off..off+len)).
+     *
+     * @param X   element buffer
+     * @param off index of the first byte of the element
+     * @param len byte count of the element
+     */
+    public void updateField(byte[] X, int off, int len) {
+        encode_string(X, off, len);
+    }
+
+    /**
+     * Start a tuple element of a known length whose bytes will follow through update calls.
+     *
+     * @param len byte count of the element
+     */
+    public void beginField(long len) {
+        if (len < 0 || len > Long.MAX_VALUE >>> 3) {
+            throw new IllegalArgumentException("Invalid tuple element length " + len);
+        }
+        left_encode(len << 3);
     }
 
     /**
@@ -273,28 +417,119 @@ public class SHAKE {
      * @param len  byte count on the buffer (starting at index 0)
      */
     public void update(byte[] data, int len) {
+        update(data, 0, len);
+    }
+
+    /**
+     * Update the SHAKE256 sponge with a slice of a byte-oriented data buffer.
+     * Whole 8-byte lanes are absorbed directly; only the unaligned head and tail are absorbed bytewise.
+     *
+     * @param data byte-oriented data buffer
+     * @param off  index of the first byte to absorb
+     * @param len  byte count to absorb
+     */
+    public void update(byte[] data, int off, int len) {
+        if (off < 0 || len < 0 || off > data.length - len) {
+            throw new IndexOutOfBoundsException("Invalid slice [" + off + ", " + off + " + " + len + ") of a " + data.length + "-byte buffer");
+        }
+        if (Metrics.ENABLED) {
+            Metrics.ABSORBED.add(len);
+        }
         int j = this.pt;
-        for (int i = 0; i < len; i++) {
-            this.b[j++] ^= data[i];
-            if (j >= this.rsiz) {
-                sha3_keccakf(b);
+        // unaligned head, up to the next lane boundary
+        while (len > 0 && (j & 7) != 0) {
+            this.q[j >>> 3] ^= ((long) data[off++] & 0xFFL) << ((j & 7) << 3);
+            len--;
+            if (++j >= this.rsiz) {
+                sha3_keccakf(q);
                 j = 0;
             }
         }
+        // whole rate blocks
+        if (j == 0) {
+            int lanes = this.rsiz >>> 3;
+            while (len >= this.rsiz) {
+                for (int k = 0; k < lanes; k++, off += 8) {
+                    this.q[k] ^= (long) LE_LONG_ARRAY.get(data, off);
+                }
+                len -= this.rsiz;
+                sha3_keccakf(q);
+            }
+        }
+        // whole lanes
+        while (len >= 8) {
+            this.q[j >>> 3] ^= (long) LE_LONG_ARRAY.get(data, off);
+            off += 8;
+            len -= 8;
+            if ((j += 8) >= this.rsiz) {
+                sha3_keccakf(q);
+                j = 0;
+            }
+        }
+        // tail
+        while (len > 0) {
+            this.q[j >>> 3] ^= ((long) data[off++] & 0xFFL) << ((j & 7) << 3);
+            len--;
+            j++; // the tail is shorter than a lane, so it never fills the rate
+        }
         this.pt = j;
     }
 
+    /**
+     * Update the SHAKE256 sponge with the remaining bytes of a buffer.
+     * On return the buffer position equals its limit.
+     *
+     * @param data byte-oriented data buffer (heap or direct)
+     */
+    public void update(ByteBuffer data) {
+        int len = data.remaining();
+        if (data.hasArray()) {
+            update(data.array(), data.arrayOffset() + data.position(), len);
+            data.position(data.limit());
+            return;
+        }
+        if (Metrics.ENABLED) {
+            Metrics.ABSORBED.add(len);
+        }
+        int off = data.position();
+        int j = this.pt;
+        while (len > 0 && (j & 7) != 0) {
+            this.q[j >>> 3] ^= ((long) data.get(off++) & 0xFFL) << ((j & 7) << 3);
+            len--;
+            if (++j >= this.rsiz) {
+                sha3_keccakf(q);
+                j = 0;
+            }
+        }
+        while (len >= 8) {
+            this.q[j >>> 3] ^= (long) LE_LONG_BUFFER.get(data, off);
+            off += 8;
+            len -= 8;
+            if ((j += 8) >= this.rsiz) {
+                sha3_keccakf(q);
+                j = 0;
+            }
+        }
+        while (len > 0) {
+            this.q[j >>> 3] ^= ((long) data.get(off++) & 0xFFL) << ((j & 7) << 3);
+            len--;
+            j++;
+        }
+        this.pt = j;
+        data.position(off);
+    }
+
     /**
      * Switch from absorbing to extensible squeezing.
      */
     public void xof() {
-        if (kmac) {
+        if (kmac || tuple) {
             update(right_encode_0, right_encode_0.length); // mandatory padding as per the NIST specification
         }
         // the (binary) cSHAKE suffix is 00, while the (binary) SHAKE suffix is 1111
-        this.b[this.pt] ^= (byte) (this.ext ? 0x04 : 0x1F);
-        this.b[this.rsiz - 1] ^= (byte) 0x80;
-        sha3_keccakf(b);
+        this.q[this.pt >>> 3] ^= (this.ext ? 0x04L : 0x1FL) << ((this.pt & 7) << 3);
+        this.q[(this.rsiz - 1) >>> 3] ^= 0x80L << (((this.rsiz - 1) & 7) << 3);
+        sha3_keccakf(q);
         this.pt = 0;
     }
 
@@ -306,15 +541,97 @@ public class SHAKE {
      * @param len squeezed byte count
      */
     public void out(byte[] out, int len) {
-        int j = pt;
-        for (int i = 0; i < len; i++) {
-            if (j >= rsiz) {
-                sha3_keccakf(b);
+        squeeze(out, 0, len, false);
+    }
+
+    /**
+     * Squeeze a chunk of hashed bytes from the sponge into a slice of a buffer.
+     *
+     * @param out hash value buffer
+     * @param off index of the first byte to write
+     * @param len squeezed byte count
+     */
+    public void out(byte[] out, int off, int len) {
+        squeeze(out, off, len, false);
+    }
+
+    /**
+     * Squeeze a chunk of hashed bytes from the sponge and XOR it into a slice of a buffer in place,
+     * e.g. to apply a keystream without materializing it.
+     *
+     * @param buf data buffer
+     * @param off index of the first byte to XOR
+     * @param len squeezed byte count
+     */
+    public void xorOut(byte[] buf, int off, int len) {
+        squeeze(buf, off, len, true);
+    }
+
+    /**
+     * Squeeze hashed bytes from the sponge and XOR them into the remaining bytes of a buffer in place.
+     * On return the buffer position equals its limit.
+     *
+     * @param buf data buffer (heap or direct)
+     */
+    public void xorOut(ByteBuffer buf) {
+        int len = buf.remaining();
+        if (buf.hasArray()) {
+            squeeze(buf.array(), buf.arrayOffset() + buf.position(), len, true);
+            buf.position(buf.limit());
+            return;
+        }
+        int off = buf.position();
+        int j = this.pt;
+        while (len > 0) {
+            if (j >= this.rsiz) {
+                sha3_keccakf(q);
+                j = 0;
+            }
+            if ((j & 7) == 0 && len >= 8) {
+                LE_LONG_BUFFER.set(buf, off, (long) LE_LONG_BUFFER.get(buf, off) ^ this.q[j >>> 3]);
+                off += 8;
+                len -= 8;
+                j += 8;
+            } else {
+                buf.put(off, (byte) (buf.get(off) ^ (this.q[j >>> 3] >>> ((j & 7) << 3))));
+                off++;
+                len--;
+                j++;
+            }
+        }
+        this.pt = j;
+        buf.position(off);
+    }
+
+    /**
+     * Squeeze len bytes into out[off..off+len), either overwriting or XORing them in,
+     * a whole lane at a time whenever the sponge position is lane-aligned.
+     */
+    private void squeeze(byte[] out, int off, int len, boolean xor) {
+        if (off < 0 || len < 0 || off > out.length - len) {
+            throw new IndexOutOfBoundsException("Invalid slice [" + off + ", " + off + " + " + len + ") of a " + out.length + "-byte buffer");
+        }
+        int j = this.pt;
+        while (len > 0) {
+            if (j >= this.rsiz) {
+                sha3_keccakf(q);
                 j = 0;
             }
-            out[i] = b[j++];
+            if ((j & 7) == 0 && len >= 8) {
+                long lane = this.q[j >>> 3];
+                LE_LONG_ARRAY.set(out, off, xor ? (long) LE_LONG_ARRAY.get(out, off) ^ lane : lane);
+                off += 8;
+                len -= 8;
+                j += 8;
+            } else {
+                byte b = (byte) (this.q[j >>> 3] >>> ((j & 7) << 3));
+                out[off] = xor ? (byte) (out[off] ^ b) : b;
+                off++;
+                len--;
+                j++;
+            }
         }
-        pt = j;
+        this.pt = j;
     }
 
     /**
@@ -334,7 +651,7 @@ public class SHAKE {
         byte[] val = new byte[L >>> 3];
         SHAKE shake = new SHAKE();
         shake.cinit256(N, S);
-        shake.update(X, X.length);
+        shake.update(X, 0, X.length);
         shake.xof();
         shake.out(val, L >>> 3);
         return val; // SHAKE256(X, L) or KECCAK512(prefix || X || 00, L)
@@ -357,10 +674,329 @@ public class SHAKE {
         byte[] val = new byte[L >>> 3];
         SHAKE shake = new SHAKE();
         shake.kinit256(K, S);
-        shake.update(X, X.length);
+        shake.update(X, 0, X.length);
         shake.xof();
         shake.out(val, L >>> 3);
         return val; // SHAKE256(X, L) or KECCAK512(prefix || X || 00, L)
     }
 
+    /**
+     * Compute cSHAKE256 with function name N and customization string S on each input X[i],
+     * with output bitlength L. The prefix block is absorbed once for the whole batch; each message
+     * is then hashed on its own, so this saves one permutation per message and no more.
+     *
+     * @param X data to be hashed, one entry per message
+     * @param L desired output length in bits
+     * @param N function name
+     * @param S customization string
+     * @return the hash values, in the order of X
+     */
+    static byte[][] cSHAKE256SharedPrefix(byte[][] X, int L, byte[] N, byte[] S) {
+        SHAKE prefix = new SHAKE();
+        prefix.cinit256(N, S);
+        return sharedPrefix(prefix, null, X, L);
+    }
+
+    /**
+     * Compute KMACXOF256 with key K[i] on each input X[i], with output bitlength L and customization string S.
+     * The KMAC prefix block is absorbed once for the whole batch; each key block and message is then
+     * absorbed on its own, so this saves one permutation per message and no more.
+     *
+     * @param K MAC keys, one entry per message
+     * @param X data to be hashed, one entry per message
+     * @param L desired output length in bits
+     * @param S customization string
+     * @return the MAC tags, in the order of X
+     */
+    static byte[][] KMACXOF256SharedPrefix(byte[][] K, byte[][] X, int L, byte[] S) {
+        if (K.length != X.length) {
+            throw new IllegalArgumentException("Expected one key per message, got " + K.length + " keys for " + X.length + " messages");
+        }
+        SHAKE prefix = new SHAKE();
+        prefix.cinit256(KMAC_N, S);
+        prefix.kmac = true;
+        return sharedPrefix(prefix, K, X, L);
+    }
+
+    /**
+     * Finish a batch of messages whose sponges all start from the state of prefix,
+     * optionally absorbing a per-message key block first.
+     * A single sponge is reset from the prefix snapshot for every message.
+     */
+    private static byte[][] sharedPrefix(SHAKE prefix, byte[][] K, byte[][] X, int L) {
+        if ((L & 7) != 0) {
+            throw new RuntimeException("Implementation restriction: output length (in bits) must be a multiple of 8");
+        }
+        byte[][] val = new byte[X.length][L >>> 3];
+        SHAKE shake = new SHAKE();
+        for (int i = 0; i < X.length; i++) {
+            shake.copyFrom(prefix);
+            if (K != null) {
+                shake.absorbKey(K[i]);
+            }
+            shake.update(X[i], 0, X[i].length);
+            shake.xof();
+            shake.out(val[i], L >>> 3);
+        }
+        return val;
+    }
+
+    /**
+     * Compute TupleHash256 on the tuple X, with output bitlength L and customization string S.
+     *
+     * @param X the tuple elements to be hashed
+     * @param L desired output length in bits
+     * @param S customization string
+     * @return the desired hash value
+     */
+    static byte[] TupleHash256(byte[][] X, int L, byte[] S) {
+        // Validity Conditions: len(S) < 2^2040 and 0 ≤ L
+        if ((L & 7) != 0) {
+            throw new RuntimeException("Implementation restriction: output length (in bits) must be a multiple of 8");
+        }
+        byte[] val = new byte[L >>> 3];
+        SHAKE shake = new SHAKE();
+        shake.cinit256(TUPLE_HASH_N, S);
+        for (byte[] x : X) {
+            shake.updateField(x, 0, x.length);
+        }
+        shake.right_encode(L);
+        shake.xof();
+        shake.out(val, L >>> 3);
+        return val;
+    }
+
+    /**
+     * Compute TupleHashXOF256 on the tuple X, with output bitlength L and customization string S.
+     *
+     * @param X the tuple elements to be hashed
+     * @param L desired output length in bits
+     * @param S customization string
+     * @return the desired hash value
+     */
+    static byte[] TupleHashXOF256(byte[][] X, int L, byte[] S) {
+        // Validity Conditions: len(S) < 2^2040 and 0 ≤ L
+        if ((L & 7) != 0) {
+            throw new RuntimeException("Implementation restriction: output length (in bits) must be a multiple of 8");
+        }
+        byte[] val = new byte[L >>> 3];
+        SHAKE shake = new SHAKE();
+        shake.tinit256(S);
+        for (byte[] x : X) {
+            shake.updateField(x, 0, x.length);
+        }
+        shake.xof();
+        shake.out(val, L >>> 3);
+        return val;
+    }
+
+    /**
+     * Compute ParallelHash256 on input X with block size B, output bitlength L, and customization string S.
+     *
+     * @param X data to be hashed
+     * @param B block size in bytes
+     * @param L desired output length in bits
+     * @param S customization string
+     * @return the desired hash value
+     */
+    static byte[] ParallelHash256(byte[] X, int B, int L, byte[] S) {
+        return parallelHash(ByteBuffer.wrap(X), B, L, S, false);
+    }
+
+    /**
+     * Compute ParallelHashXOF256 on input X with block size B, output bitlength L, and customization string S.
+     *
+     * @param X data to be hashed
+     * @param B block size in bytes
+     * @param L desired output length in bits
+     * @param S customization string
+     * @return the desired hash value
+     */
+    static byte[] ParallelHashXOF256(byte[] X, int B, int L, byte[] S) {
+        return parallelHash(ByteBuffer.wrap(X), B, L, S, true);
+    }
+
+    /**
+     * Compute ParallelHash256 on the whole content of a file, mapping it in windows and hashing the leaves of
+     * each window concurrently on the common fork-join pool.
+     *
+     * @param X file to be hashed
+     * @param B block size in bytes
+     * @param L desired output length in bits
+     * @param S customization string
+     * @return the desired hash value
+     */
+    static byte[] ParallelHash256(FileChannel X, int B, int L, byte[] S) throws IOException {
+        return parallelHash(X, B, L, S, false);
+    }
+
+    /**
+     * Compute ParallelHashXOF256 on the whole content of a file, mapping it in windows and hashing the leaves of
+     * each window concurrently on the common fork-join pool.
+     *
+     * @param X file to be hashed
+     * @param B block size in bytes
+     * @param L desired output length in bits
+     * @param S customization string
+     * @return the desired hash value
+     */
+    static byte[] ParallelHashXOF256(FileChannel X, int B, int L, byte[] S) throws IOException {
+        return parallelHash(X, B, L, S, true);
+    }
+
+    private static byte[] parallelHash(ByteBuffer X, int B, int L, byte[] S, boolean xof) {
+        SHAKE shake = parallelInit(B, L, S);
+        long n = absorbLeaves(shake, X, B);
+        return parallelFinish(shake, n, L, xof);
+    }
+
+    private static byte[] parallelHash(FileChannel X, int B, int L, byte[] S, boolean xof) throws IOException {
+        SHAKE shake = parallelInit(B, L, S);
+        long size = X.size(), n = 0;
+        long window = Math.max(1, PARALLEL_WINDOW / B) * (long) B; // whole leaves only, except at the end
+        for (long pos = 0; pos < size; pos += window) {
+            n += absorbLeaves(shake, X.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(window, size - pos)), B);
+        }
+        return parallelFinish(shake, n, L, xof);
+    }
+
+    private static SHAKE parallelInit(int B, int L, byte[] S) {
+        // Validity Conditions: 0 < B < 2^2040 and 0 ≤ L and len(S) < 2^2040
+        if (B <= 0) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        if ((L & 7) != 0) {
+            throw new RuntimeException("Implementation restriction: output length (in bits) must be a multiple of 8");
+        }
+        SHAKE shake = new SHAKE();
+        shake.cinit256(PARALLEL_HASH_N, S);
+        shake.left_encode(B);
+        return shake;
+    }
+
+    private static byte[] parallelFinish(SHAKE shake, long n, int L, boolean xof) {
+        shake.right_encode(n);
+        shake.right_encode(xof ? 0 : L);
+        shake.xof();
+        byte[] val = new byte[L >>> 3];
+        shake.out(val, L >>> 3);
+        return val;
+    }
+
+    /**
+     * Hash the leaves of X (from its position to its limit) concurrently and absorb their digests in order.
+     * At most one window of leaves is in flight, bounded both in input bytes and in digest bytes,
+     * so a small B cannot blow up the digest buffer.
+     *
+     * @return the number of leaves absorbed
+     */
+    private static long absorbLeaves(SHAKE shake, ByteBuffer X, int B) {
+        int window = Math.max(1, Math.min(PARALLEL_WINDOW / B, PARALLEL_DIGESTS / 64));
+        long n = 0;
+        ByteBuffer slice = X.duplicate();
+        for (int pos = X.position(); pos < X.limit(); pos += Math.min(X.limit() - pos, window * B)) {
+            slice.limit(X.limit()).position(pos);
+            slice.limit(pos + Math.min(X.limit() - pos, window * B));
+            int count = (int) (((long) slice.remaining() + B - 1) / B);
+            byte[] z = new byte[Math.toIntExact((long) count * 64)];
+            ForkJoinPool.commonPool().invoke(new LeafTask(slice, B, z, 0, count));
+            shake.update(z, 0, z.length);
+            n += count;
+        }
+        return n;
+    }
+
+    /**
+     * Hash a range of ParallelHash leaves with SHAKE256, splitting the range across the fork-join pool.
+     */
+    private static final class LeafTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final ByteBuffer X;
+        private final int B, from, to;
+        private final byte[] z;
+
+        LeafTask(ByteBuffer X, int B, byte[] z, int from, int to) {
+            this.X = X;
+            this.B = B;
+            this.z = z;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && (long) (to - from) * B > PARALLEL_GRAIN) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new LeafTask(X, B, z, from, mid), new LeafTask(X, B, z, mid, to));
+                return;
+            }
+            SHAKE shake = new SHAKE();
+            ByteBuffer leaf = X.duplicate();
+            int base = X.position();
+            for (int i = from; i < to; i++) {
+                int start = base + i * B;
+                leaf.limit(start + Math.min(B, X.limit() - start)).position(start);
+                shake.init256();
+                shake.update(leaf);
+                shake.xof();
+                shake.out(z, i * 64, 64);
+            }
+        }
+    }
+
+    /**
+     * A KMACXOF256 sponge keyed once with K and S, cloned for every message.
+     * This skips re-encoding and re-absorbing the KMAC prefix and the key block for each call.
+     */
+    public static final class KMACContext {
+        private final SHAKE keyed = new SHAKE();
+
+        /**
+         * Precompute the KMACXOF256 state for a fixed key and customization string.
+         *
+         * @param K MAC key
+         * @param S customization string
+         */
+        public KMACContext(byte[] K, byte[] S) {
+            keyed.kinit256(K, S);
+        }
+
+        /**
+         * Get a fresh sponge positioned right after key absorption, ready for update.
+         *
+         * @return an independent copy of the keyed sponge
+         */
+        public SHAKE newSponge() {
+            return new SHAKE(keyed);
+        }
+
+        /**
+         * Reset an existing sponge to the keyed state, without allocating.
+         *
+         * @param shake the sponge to reset
+         */
+        public void reset(SHAKE shake) {
+            shake.copyFrom(keyed);
+        }
+
+        /**
+         * Compute KMACXOF256 with this context's key and customization string on input X.
+         *
+         * @param X data to be hashed
+         * @param L desired output length in bits
+         * @return the desired MAC tag
+         */
+        public byte[] KMACXOF256(byte[] X, int L) {
+            if ((L & 7) != 0) {
+                throw new RuntimeException("Implementation restriction: output length (in bits) must be a multiple of 8");
+            }
+            byte[] val = new byte[L >>> 3];
+            SHAKE shake = newSponge();
+            shake.update(X, 0, X.length);
+            shake.xof();
+            shake.out(val, L >>> 3);
+            return val;
+        }
+    }
+
 }
@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Seekable passphrase encryption of large files. The plaintext is cut into full segments of a fixed size
+ * followed by one final, shorter (possibly empty) segment. Each segment i is encrypted with its own keystream
+ * KMACXOF256(ke, i, *, "SKS") and authenticated by its own tag
+ * KMACXOF256(ka, i || final || segment size || ciphertext_i, 256, "SKT"). The tags form an index block
+ * after the ciphertext:
+ *
+ * <pre>
+ * Cryptogram header (mode MODE_SEGMENTED, field IV || segment size) | ciphertext | tag_0 ... tag_n-1
+ * </pre>
+ *
+ * Ciphertext offsets equal plaintext offsets, so any byte range is authenticated and decrypted by reading
+ * only its segments and their tags. Tags cover the segment index, so segments cannot be reordered, and
+ * open checks the final segment, so the length in the header cannot be changed by truncating or extending.
+ *
+ * @author Brandon Gaetaniello
+ * @author Arwain Karlin
+ */
+public final class SegmentedCryptogram {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 16;
+    public static final int MAX_SEGMENT_SIZE = 1 << 24;
+    public static final int TAG_LENGTH = 32;
+    private static final int IV_LENGTH = 16;
+
+    private final FileChannel in;
+    private final long base; // position of the first ciphertext byte
+    private final long length;
+    private final int segmentSize;
+    private final SHAKE.KMACContext keystream;
+    private final SHAKE.KMACContext tag;
+
+    private SegmentedCryptogram(FileChannel in, long base, long length, int segmentSize, byte[] z, byte[] pw) {
+        this.in = in;
+        this.base = base;
+        this.length = length;
+        this.segmentSize = segmentSize;
+        byte[][] keys = keys(z, pw);
+        this.keystream = new SHAKE.KMACContext(keys[0], Main.asciiStringToByteArray("SKS"));
+        this.tag = new SHAKE.KMACContext(keys[1], Main.asciiStringToByteArray("SKT"));
+    }
+
+    /**
+     * Encrypt a stream under a passphrase into a segmented cryptogram, in constant memory.
+     * When in is a FileChannel the length is known up front, and each tag is written straight to its place
+     * in the index block after the ciphertext; otherwise the tags are spooled to a temporary file and
+     * appended at the end.
+     *
+     * @param in          plaintext source
+     * @param out         container sink; the container starts at its current position
+     * @param pw          passphrase
+     * @param segmentSize plaintext bytes per segment
+     * @return the plaintext length
+     */
+    public static long encrypt(ReadableByteChannel in, FileChannel out, byte[] pw, int segmentSize) throws IOException {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("segment size must be in [1, " + MAX_SEGMENT_SIZE + "]");
+        }
+        byte[] z = new byte[IV_LENGTH];
+        new SecureRandom().nextBytes(z);
+        Cryptogram header = Cryptogram.segmented(field(z, segmentSize));
+        long start = out.position();
+        long base = start + header.headerLength();
+        out.position(base);
+
+        SegmentedCryptogram sink = new SegmentedCryptogram(out, base, -1, segmentSize, z, pw);
+        SHAKE sponge = sink.keystream.newSponge();
+        ByteBuffer segment = ByteBuffer.allocate(segmentSize);
+        long expected = in instanceof FileChannel ? ((FileChannel) in).size() - ((FileChannel) in).position() : -1;
+        Path spool = expected < 0 ? Files.createTempFile("segments", ".idx") : null;
+        try (FileChannel spooled = spool != null ? FileChannel.open(spool, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE) : null) {
+            FileChannel index = spooled != null ? spooled : out;
+            long indexBase = spooled != null ? 0 : base + expected;
+            long length = 0;
+            for (long i = 0; ; i++) {
+                segment.clear();
+                while (segment.hasRemaining() && in.read(segment) >= 0) {
+                    // fill the segment
+                }
+                int n = segment.position();
+                boolean last = n < segmentSize;
+                applyKeystream(sink.keystream, sponge, i, segment.array(), n);
+                ByteBuffer t = ByteBuffer.wrap(sink.tag(i, last, segment.array(), n));
+                while (t.hasRemaining()) {
+                    index.write(t, indexBase + i * TAG_LENGTH + t.position());
+                }
+                segment.flip();
+                while (segment.hasRemaining()) {
+                    out.write(segment);
+                }
+                length += n;
+                if (last) {
+                    break;
+                }
+            }
+            if (spooled == null && length != expected) {
+                throw new IOException("input changed size during encryption");
+            }
+            long end = base + length + (length / segmentSize + 1) * TAG_LENGTH;
+            if (spooled != null) {
+                for (long done = 0, size = spooled.size(); done < size; ) {
+                    done += spooled.transferTo(done, size - done, out);
+                }
+            }
+            out.position(start);
+            header.writeHeader(out, length, TAG_LENGTH);
+            out.position(end);
+            return length;
+        }
+    }
+
+    /**
+     * Open a segmented cryptogram for random access. Only the final segment is authenticated here,
+     * which fixes the length; the others are checked as decrypt reaches them.
+     *
+     * @param in a channel positioned at the container
+     * @param pw passphrase
+     * @throws IllegalArgumentException if in does not hold a segmented cryptogram, or the header claims
+     *                                  more than the file holds or a segment size above MAX_SEGMENT_SIZE
+     */
+    public static SegmentedCryptogram open(FileChannel in, byte[] pw) throws IOException {
+        Cryptogram header = Cryptogram.readHeader(in);
+        byte[] field = header.getIV();
+        if (header.getMode() != Cryptogram.MODE_SEGMENTED || field.length != IV_LENGTH + 4
+                || header.getMACLength() != TAG_LENGTH) {
+            throw new IllegalArgumentException("not a segmented cryptogram");
+        }
+        // the header is not authenticated yet: bound what it can make us allocate and read
+        int segmentSize = ByteBuffer.wrap(field, IV_LENGTH, 4).getInt();
+        long length = header.getCipherLength();
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("malformed segmented cryptogram");
+        }
+        SegmentedCryptogram gram = new SegmentedCryptogram(in, in.position(), length, segmentSize,
+                Arrays.copyOf(field, IV_LENGTH), pw);
+        long available = in.size() - gram.base;
+        if (length > available || (available - length) / TAG_LENGTH < gram.segments()) {
+            throw new IllegalArgumentException("truncated cryptogram");
+        }
+        gram.verify(gram.segments() - 1, gram.segmentBuffer()); // authenticates the length
+        return gram;
+    }
+
+    /**
+     * @return the plaintext length
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Authenticate and decrypt plaintext bytes [offset, offset + count), touching only the segments that hold them.
+     * Every segment is checked before any of its plaintext is written to out.
+     *
+     * @return the number of bytes written (count, clipped to the end of the plaintext)
+     * @throws IllegalArgumentException if a segment fails its tag
+     */
+    public long decrypt(long offset, long count, WritableByteChannel out) throws IOException {
+        if (offset < 0 || count < 0) {
+            throw new IllegalArgumentException("negative range");
+        }
+        long end = count > length - offset ? length : offset + count;
+        if (offset >= end) {
+            return 0;
+        }
+        ByteBuffer segment = segmentBuffer();
+        SHAKE sponge = keystream.newSponge();
+        for (long i = offset / segmentSize; i * segmentSize < end; i++) {
+            ByteBuffer c = verify(i, segment);
+            applyKeystream(keystream, sponge, i, c.array(), c.limit());
+            long from = i * segmentSize;
+            c.position((int) Math.max(0, offset - from));
+            c.limit((int) Math.min(c.limit(), end - from));
+            while (c.hasRemaining()) {
+                out.write(c);
+            }
+        }
+        return end - offset;
+    }
+
+    /**
+     * @return the number of segments, counting the final partial (possibly empty) one
+     */
+    long segments() {
+        return length / segmentSize + 1;
+    }
+
+    /**
+     * @return a buffer large enough for any segment, which is never more than the whole ciphertext
+     */
+    private ByteBuffer segmentBuffer() {
+        return ByteBuffer.allocate((int) Math.min(segmentSize, length));
+    }
+
+    /**
+     * Read segment i and check its tag.
+     *
+     * @return the segment's ciphertext, in segment
+     */
+    private ByteBuffer verify(long i, ByteBuffer segment) throws IOException {
+        ByteBuffer c = readSegment(i, segment);
+        if (!MessageDigest.isEqual(readTag(i), tag(i, i == segments() - 1, c.array(), c.limit()))) {
+            throw new IllegalArgumentException("MAC verification failed for segment " + i);
+        }
+        return c;
+    }
+
+    private ByteBuffer readSegment(long i, ByteBuffer segment) throws IOException {
+        long from = i * segmentSize;
+        segment.clear();
+        segment.limit((int) Math.min(segmentSize, length - from));
+        while (segment.hasRemaining()) {
+            if (in.read(segment, base + from + segment.position()) < 0) {
+                throw new IllegalArgumentException("truncated cryptogram");
+            }
+        }
+        segment.flip();
+        return segment;
+    }
+
+    private byte[] readTag(long i) throws IOException {
+        ByteBuffer t = ByteBuffer.allocate(TAG_LENGTH);
+        long at = base + length + i * TAG_LENGTH;
+        while (t.hasRemaining()) {
+            if (in.read(t, at + t.position()) < 0) {
+                throw new IllegalArgumentException("truncated cryptogram");
+            }
+        }
+        return t.array();
+    }
+
+    private byte[] tag(long i, boolean last, byte[] c, int n) {
+        SHAKE mac = tag.newSponge();
+        byte[] prefix = ByteBuffer.allocate(13).putLong(i).put((byte) (last ? 1 : 0)).putInt(segmentSize).array();
+        mac.update(prefix, 0, prefix.length);
+        mac.update(c, 0, n);
+        mac.xof();
+        byte[] t = new byte[TAG_LENGTH];
+        mac.out(t, t.length);
+        return t;
+    }
+
+    /**
+     * XOR the keystream of segment i into buf[0, n).
+     */
+    private static void applyKeystream(SHAKE.KMACContext ske, SHAKE sponge, long i, byte[] buf, int n) {
+        ske.reset(sponge);
+        byte[] index = ByteBuffer.allocate(8).putLong(i).array();
+        sponge.update(index, 0, index.length);
+        sponge.xof();
+        sponge.xorOut(buf, 0, n);
+    }
+
+    /**
+     * Derive (ke, ka) as the two 64-byte halves of KMACXOF256(z || pw, "", 1024, "S"). The input is the same
+     * as for the other passphrase cryptograms, but the split is not: Main drops the first and last byte of ka.
+     */
+    private static byte[][] keys(byte[] z, byte[] pw) {
+        byte[] keka = SHAKE.KMACXOF256(SHAKE.concat(z, pw), "".getBytes(), 1024, Main.asciiStringToByteArray("S"));
+        return new byte[][]{Arrays.copyOfRange(keka, 0, keka.length / 2), Arrays.copyOfRange(keka, keka.length / 2, keka.length)};
+    }
+
+    private static byte[] field(byte[] z, int segmentSize) {
+        return ByteBuffer.allocate(IV_LENGTH + 4).put(z).putInt(segmentSize).array();
+    }
+
+}